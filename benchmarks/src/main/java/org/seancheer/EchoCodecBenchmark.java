@@ -0,0 +1,139 @@
+package org.seancheer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EchoServer中的int编解码器和echo handler，通过EmbeddedChannel驱动整个pipeline。
+ * 放在org.seancheer包下是因为这些handler都是EchoServer中包可见的内部类。
+ *
+ * @author: seancheer
+ * @date: 2020/3/16
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EchoCodecBenchmark {
+    @Param({"1024"})
+    public int ints;
+
+    private ByteBuf intPayload;
+    private ByteBuf echoPayload;
+    private int[] values;
+    private EmbeddedChannel intDecoder;
+    private EmbeddedChannel batchIntDecoder;
+    private EmbeddedChannel intEncoder;
+    private EmbeddedChannel batchIntEncoder;
+    private EmbeddedChannel echoHandler;
+    private EmbeddedChannel pipelinedEchoHandler;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        values = new int[ints];
+        intPayload = PooledByteBufAllocator.DEFAULT.directBuffer(ints * 4);
+        for (int i = 0; i < ints; i++) {
+            values[i] = i;
+            intPayload.writeInt(i);
+        }
+        echoPayload = PooledByteBufAllocator.DEFAULT.directBuffer().writeBytes(new byte[128]);
+
+        intDecoder = new EmbeddedChannel(new EchoServer.IntMessageDecoder());
+        batchIntDecoder = new EmbeddedChannel(new EchoServer.BatchIntMessageDecoder());
+        intEncoder = new EmbeddedChannel(new EchoServer.IntMessageEncoder());
+        batchIntEncoder = new EmbeddedChannel(new EchoServer.BatchIntMessageEncoder());
+        echoHandler = new EmbeddedChannel(new EchoServer.EchoServerHandler());
+        pipelinedEchoHandler = new EmbeddedChannel(new EchoServer.PipelinedEchoHandler(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        intPayload.release();
+        echoPayload.release();
+        intDecoder.finishAndReleaseAll();
+        batchIntDecoder.finishAndReleaseAll();
+        intEncoder.finishAndReleaseAll();
+        batchIntEncoder.finishAndReleaseAll();
+        echoHandler.finishAndReleaseAll();
+        pipelinedEchoHandler.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void decodeInteger(Blackhole bh) {
+        drainInbound(intDecoder, bh);
+    }
+
+    @Benchmark
+    public void decodeBatch(Blackhole bh) {
+        drainInbound(batchIntDecoder, bh);
+    }
+
+    @Benchmark
+    public void encodeInteger(Blackhole bh) {
+        for (int value : values) {
+            intEncoder.write(value);
+        }
+        intEncoder.flush();
+        drainOutbound(intEncoder, bh);
+    }
+
+    @Benchmark
+    public void encodeBatch(Blackhole bh) {
+        batchIntEncoder.writeAndFlush(values);
+        drainOutbound(batchIntEncoder, bh);
+    }
+
+    /**
+     * EchoServerHandler在channelReadComplete中会关闭连接，所以这里只触发channelRead，
+     * 包括它在每个消息上的解码和println
+     */
+    @Benchmark
+    public void echoServerHandler(Blackhole bh) {
+        echoHandler.pipeline().fireChannelRead(echoPayload.retainedDuplicate());
+        echoHandler.flushOutbound();
+        drainOutbound(echoHandler, bh);
+    }
+
+    @Benchmark
+    public void pipelinedEchoHandler(Blackhole bh) {
+        pipelinedEchoHandler.writeInbound(echoPayload.retainedDuplicate());
+        drainOutbound(pipelinedEchoHandler, bh);
+    }
+
+    private void drainInbound(EmbeddedChannel channel, Blackhole bh) {
+        channel.writeInbound(intPayload.retainedDuplicate());
+        Object msg;
+        while ((msg = channel.readInbound()) != null) {
+            bh.consume(msg);
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void drainOutbound(EmbeddedChannel channel, Blackhole bh) {
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            bh.consume(msg);
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.seancheer.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * benchmarks.jar的入口，接受所有jmh的命令行参数，并且默认开启GC profiler(gc.alloc.rate.norm即每次操作分配的字节数)，
+ * 比如：java -jar benchmarks.jar EchoCodecBenchmark -f 1
+ *
+ * @author: seancheer
+ * @date: 2020/3/16
+ **/
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,114 @@
+package org.seancheer.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ByteBufTest中演示的几种操作的开销：copy会真正拷贝数据，duplicate和slice只是共享内存的视图，
+ * CompositeByteBuf把多个buffer组合起来而不拷贝
+ *
+ * @author: seancheer
+ * @date: 2020/3/16
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteBufOpsBenchmark {
+    @Param({"64", "1024", "16384"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean direct;
+
+    private ByteBuf header;
+    private ByteBuf body;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        PooledByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+        header = direct ? alloc.directBuffer(size) : alloc.heapBuffer(size);
+        body = direct ? alloc.directBuffer(size) : alloc.heapBuffer(size);
+        for (int i = 0; i < size; i++) {
+            header.writeByte(i);
+            body.writeByte(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        header.release();
+        body.release();
+    }
+
+    @Benchmark
+    public ByteBuf copy() {
+        ByteBuf copy = body.copy();
+        copy.release();
+        return copy;
+    }
+
+    @Benchmark
+    public ByteBuf duplicate() {
+        return body.duplicate();
+    }
+
+    @Benchmark
+    public ByteBuf retainedDuplicate() {
+        ByteBuf dup = body.retainedDuplicate();
+        dup.release();
+        return dup;
+    }
+
+    @Benchmark
+    public ByteBuf slice() {
+        return body.slice(size / 4, size / 2);
+    }
+
+    @Benchmark
+    public ByteBuf retainedSlice() {
+        ByteBuf slice = body.retainedSlice(size / 4, size / 2);
+        slice.release();
+        return slice;
+    }
+
+    /**
+     * 把header和body拷贝到一个新的buffer中
+     */
+    @Benchmark
+    public ByteBuf mergeByCopy() {
+        ByteBuf merged = header.alloc().buffer(size * 2);
+        merged.writeBytes(header, header.readerIndex(), size).writeBytes(body, body.readerIndex(), size);
+        merged.release();
+        return merged;
+    }
+
+    /**
+     * 通过CompositeByteBuf组合header和body，不拷贝数据
+     */
+    @Benchmark
+    public ByteBuf mergeByComposite() {
+        CompositeByteBuf composite = header.alloc().compositeBuffer(2);
+        composite.addComponents(true, header.retainedDuplicate(), body.retainedDuplicate());
+        composite.release();
+        return composite;
+    }
+}
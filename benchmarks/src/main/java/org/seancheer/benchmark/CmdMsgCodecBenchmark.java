@@ -0,0 +1,141 @@
+package org.seancheer.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.protobuf.ProtobufDecoder;
+import io.netty.handler.codec.protobuf.ProtobufEncoder;
+import io.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
+import io.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.seancheer.protobuf.CmdMessage;
+import org.seancheer.protobuf.CmdMsgDecoder;
+import org.seancheer.protobuf.CmdMsgEncoder;
+import org.seancheer.protobuf.CmdMsgFrameCache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CmdMsg的编解码：netty自带的protobuf codec组合 vs CmdMsgDecoder/CmdMsgEncoder vs CmdMsgFrameCache，
+ * 每次操作处理batch个报文
+ *
+ * @author: seancheer
+ * @date: 2020/3/16
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CmdMsgCodecBenchmark {
+    @Param({"0", "256"})
+    public int descLength;
+
+    @Param({"16"})
+    public int batch;
+
+    private CmdMessage.CmdMsg msg;
+    private ByteBuf frames;
+    private EmbeddedChannel nettyDecoder;
+    private EmbeddedChannel cmdMsgDecoder;
+    private EmbeddedChannel nettyEncoder;
+    private EmbeddedChannel cmdMsgEncoder;
+    private CmdMsgFrameCache cache;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        StringBuilder desc = new StringBuilder();
+        for (int i = 0; i < descLength; i++) {
+            desc.append((char) ('a' + i % 26));
+        }
+        msg = CmdMessage.CmdMsg.newBuilder().setLength(8).setType(12).setDesc(desc.toString()).build();
+        //使用direct buffer作为输入，和从socket中读到的数据一致
+        frames = PooledByteBufAllocator.DEFAULT.directBuffer();
+        for (int i = 0; i < batch; i++) {
+            CmdMsgEncoder.writeFrame(msg, frames);
+        }
+
+        nettyDecoder = new EmbeddedChannel(new ProtobufVarint32FrameDecoder(),
+                new ProtobufDecoder(CmdMessage.CmdMsg.getDefaultInstance()));
+        cmdMsgDecoder = new EmbeddedChannel(new CmdMsgDecoder());
+        nettyEncoder = new EmbeddedChannel(new ProtobufVarint32LengthFieldPrepender(), new ProtobufEncoder());
+        cmdMsgEncoder = new EmbeddedChannel(new CmdMsgEncoder());
+        cache = new CmdMsgFrameCache();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        frames.release();
+        nettyDecoder.finishAndReleaseAll();
+        cmdMsgDecoder.finishAndReleaseAll();
+        nettyEncoder.finishAndReleaseAll();
+        cmdMsgEncoder.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void decodeNettyProtobuf(Blackhole bh) {
+        decode(nettyDecoder, bh);
+    }
+
+    @Benchmark
+    public void decodeCmdMsgDecoder(Blackhole bh) {
+        decode(cmdMsgDecoder, bh);
+    }
+
+    @Benchmark
+    public void encodeNettyProtobuf(Blackhole bh) {
+        encode(nettyEncoder, bh);
+    }
+
+    @Benchmark
+    public void encodeCmdMsgEncoder(Blackhole bh) {
+        encode(cmdMsgEncoder, bh);
+    }
+
+    /**
+     * 命中CmdMsgFrameCache时的开销，不包括写channel
+     */
+    @Benchmark
+    public void encodeFromCache(Blackhole bh) {
+        for (int i = 0; i < batch; i++) {
+            ByteBuf frame = cache.get(msg.getType(), msg.getLength(), msg.getDesc());
+            bh.consume(frame);
+            frame.release();
+        }
+    }
+
+    private void decode(EmbeddedChannel channel, Blackhole bh) {
+        channel.writeInbound(frames.retainedDuplicate());
+        Object decoded;
+        while ((decoded = channel.readInbound()) != null) {
+            bh.consume(decoded);
+        }
+    }
+
+    private void encode(EmbeddedChannel channel, Blackhole bh) {
+        for (int i = 0; i < batch; i++) {
+            channel.write(msg);
+        }
+        channel.flush();
+        Object encoded;
+        while ((encoded = channel.readOutbound()) != null) {
+            bh.consume(encoded);
+            ReferenceCountUtil.release(encoded);
+        }
+    }
+}
@@ -3,7 +3,6 @@ package org.seancheer;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
-import jdk.nashorn.internal.runtime.regexp.joni.ast.StateNode;
 
 import java.nio.charset.StandardCharsets;
 
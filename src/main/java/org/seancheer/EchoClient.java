@@ -11,14 +11,24 @@ import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.CharsetUtil;
 import io.netty.util.ResourceLeakDetector;
+import org.seancheer.client.CmdMsgClient;
+import org.seancheer.loadgen.LoadGenerator;
+import org.seancheer.protobuf.CmdMessage;
+import org.seancheer.trace.PipelineTracer;
+import org.seancheer.transport.Transport;
+import org.seancheer.transport.TransportOptions;
 
 import java.lang.ref.PhantomReference;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * netty client
@@ -27,20 +37,54 @@ public class EchoClient {
     private final int port = 12306;
     private final String server = "127.0.0.1";
 
-    public static void main(String[] args) throws InterruptedException {
+    /**
+     * 用法：EchoClient，或者EchoClient load [key=value ...]进入压测模式，参数见LoadGenerator，
+     * 或者EchoClient multiplex [请求数]通过CmdMsgClient并发的发送请求到PROTOBUF模式的EchoServer
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "load".equalsIgnoreCase(args[0])) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && "multiplex".equalsIgnoreCase(args[0])) {
+            multiplex(args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+            return;
+        }
         new EchoClient().start();
     }
 
+    /**
+     * 所有请求共享CmdMsgClient中的几个长连接
+     */
+    private static void multiplex(int requests) throws Exception {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 12345);
+        try (CmdMsgClient client = new CmdMsgClient()) {
+            CmdMessage.CmdMsg request = CmdMessage.CmdMsg.newBuilder().setLength(4).build();
+            List<CompletableFuture<CmdMessage.CmdMsg>> futures = new ArrayList<>(requests);
+            long start = System.nanoTime();
+            //连接池限制了等待获取连接的请求数和每个连接上的并发请求数，调用方需要自己控制并发
+            Semaphore inFlight = new Semaphore(512);
+            for (int i = 0; i < requests; i++) {
+                inFlight.acquire();
+                futures.add(client.send(address, request).whenComplete((response, cause) -> inFlight.release()));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+            System.out.println(String.format("%d requests completed in %d ms", requests,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+    }
+
 
     /**
      * start a client
      * @throws InterruptedException
      */
     public void start() throws InterruptedException {
-        EventLoopGroup group = new NioEventLoopGroup();
+        Transport transport = Transport.select();
+        EventLoopGroup group = transport.newEventLoopGroup(0);
         //client使用的ServerBootstrap，客户端直接使用Bootstrap
-        Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(group).channel(NioSocketChannel.class).remoteAddress(new InetSocketAddress(server, port))
+        Bootstrap bootstrap = transport.newBootstrap(group, TransportOptions.fromSystemProperties());
+        bootstrap.remoteAddress(new InetSocketAddress(server, port))
                 .handler(new ChannelInitializer<SocketChannel>() {
                     protected void initChannel(SocketChannel ch) throws Exception {
                         ch.pipeline().addLast(new EchoClientHandler())
@@ -57,6 +101,9 @@ public class EchoClient {
             e.printStackTrace();
         }finally {
             group.shutdownGracefully().sync();
+            if (PipelineTracer.isEnabled()) {
+                System.out.print(PipelineTracer.dump());
+            }
         }
     }
 
@@ -94,16 +141,22 @@ public class EchoClient {
      */
     @ChannelHandler.Sharable
     static class OutboundHandler1 extends ChannelOutboundHandlerAdapter {
+        //不再每次都println，而是通过PipelineTracer记录耗时，默认关闭
+        private static final PipelineTracer.Probe READ_PROBE = PipelineTracer.probe("OutboundHandler1.read");
+        private static final PipelineTracer.Probe WRITE_PROBE = PipelineTracer.probe("OutboundHandler1.write");
+
         @Override
         public void read(ChannelHandlerContext ctx) throws Exception {
-            System.out.println("read in OutboundHandler1");
+            long start = READ_PROBE.enter();
             super.read(ctx);
+            READ_PROBE.exit(start);
         }
 
         @Override
         public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-            System.out.println("write in OutboundHandler1");
+            long start = WRITE_PROBE.enter();
             super.write(ctx, msg, promise);
+            WRITE_PROBE.exit(start);
         }
     }
 
@@ -113,17 +166,22 @@ public class EchoClient {
      */
     @ChannelHandler.Sharable
     static class OUtboundHandler2 extends ChannelOutboundHandlerAdapter{
+        private static final PipelineTracer.Probe READ_PROBE = PipelineTracer.probe("OUtboundHandler2.read");
+        private static final PipelineTracer.Probe WRITE_PROBE = PipelineTracer.probe("OUtboundHandler2.write");
+
         @Override
         public void read(ChannelHandlerContext ctx) throws Exception {
-            System.out.println("read in OUtboundHandler2");
+            long start = READ_PROBE.enter();
             super.read(ctx);
+            READ_PROBE.exit(start);
         }
 
 
         @Override
         public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-            System.out.println("write in OUtboundHandler2");
+            long start = WRITE_PROBE.enter();
             super.write(ctx, msg, promise);
+            WRITE_PROBE.exit(start);
         }
     }
 }
@@ -3,7 +3,7 @@ package org.seancheer;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
@@ -13,22 +13,25 @@ import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.MessageToByteEncoder;
-import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.protobuf.ProtobufDecoder;
-import io.netty.handler.codec.protobuf.ProtobufEncoder;
-import io.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
-import io.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AbstractReferenceCounted;
 import io.netty.util.CharsetUtil;
+import io.netty.util.Recycler;
+import io.netty.util.internal.EmptyArrays;
+import io.netty.util.internal.MathUtil;
 import org.seancheer.protobuf.CmdMessage;
+import org.seancheer.protobuf.CmdMsgDecoder;
+import org.seancheer.protobuf.CmdMsgEncoder;
+import org.seancheer.protobuf.CmdMsgFrameCache;
+import org.seancheer.transport.Transport;
+import org.seancheer.transport.TransportOptions;
 
 import java.net.InetSocketAddress;
+import java.nio.IntBuffer;
 import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -40,39 +43,81 @@ import java.util.concurrent.TimeUnit;
 public class EchoServer {
     private final int port = 12345;
     private final String ip = "127.0.0.1";
+    private static final CmdMsgEncoder CMD_MSG_ENCODER = new CmdMsgEncoder();
+    private final Mode mode;
+    //protobuf模式下，一次read中最多写多少个响应就强制flush一次，0表示只在channelReadComplete时flush
+    private final int explicitFlushAfter = Integer.getInteger("netty_test.flushAfter", 0);
 
+    /**
+     * 服务器的工作模式
+     */
+    public enum Mode {
+        /**
+         * 原样echo收到的字节，每次read完成后关闭连接
+         */
+        ECHO,
+        /**
+         * 原样echo收到的字节，保持连接，客户端可以在一个连接上连续发送
+         */
+        PIPELINED_ECHO,
+        /**
+         * 收发带varint32长度字段的CmdMsg
+         */
+        PROTOBUF
+    }
 
+    /**
+     * 用法：EchoServer [ECHO|PIPELINED_ECHO|PROTOBUF]
+     */
     public static void main(String[] args) throws InterruptedException {
         ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-        new EchoServer().start();
+        Mode mode = args.length > 0 ? Mode.valueOf(args[0].toUpperCase()) : Mode.ECHO;
+        new EchoServer(mode).start();
+    }
+
+    public EchoServer() {
+        this(Mode.ECHO);
+    }
+
+    public EchoServer(Mode mode) {
+        this.mode = mode;
     }
 
     /**
      * start a netty server.
      */
     public void start() throws InterruptedException {
-        final EchoServerHandler serverHandler = new EchoServerHandler();
-        EventLoopGroup group = new NioEventLoopGroup();
+        final ChannelHandler serverHandler = mode == Mode.PIPELINED_ECHO
+                ? new PipelinedEchoHandler(Integer.getInteger("netty_test.logSampleRate", 1000))
+                : new EchoServerHandler();
+        //根据平台自动选择epoll/kqueue/nio
+        Transport transport = Transport.select();
+        TransportOptions options = TransportOptions.fromSystemProperties();
+        EventLoopGroup group = transport.newEventLoopGroup(0);
 
-        ServerBootstrap bootstrap = new ServerBootstrap();
-        bootstrap.group(group).channel(NioServerSocketChannel.class).localAddress(new InetSocketAddress(ip, port))
-                .childHandler(new ChannelInitializer<SocketChannel>() {
+        ServerBootstrap bootstrap = transport.newServerBootstrap(group, options);
+        bootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
                     protected void initChannel(SocketChannel ch) throws Exception {
                         //将IdleStateHandler作为第一个handler
-                        ch.pipeline().addLast(new IdleStateHandler(0, 0, 60, TimeUnit.SECONDS),
-                                serverHandler);
-//                        ch.pipeline().addLast(
-//                                new ProtobufVarint32FrameDecoder(),//负责解析protobuf前端的长度信息，根据报文的长度信息动态的分割报文
-//                                new ProtobufDecoder(CmdMessage.CmdMsg.getDefaultInstance()),//负责收到的protobuf报文，指定message的类型
-//                                new ProtobufVarint32LengthFieldPrepender(), //负责在发出去的报文前面增加长度信息
-//                                new ProtobufEncoder(),//负责对发出去的报文进行编码
-//                                new ProtobufInboundHandler());//负责处理入站的业务逻辑
+                        ch.pipeline().addLast(new IdleStateHandler(0, 0, 60, TimeUnit.SECONDS));
+                        if (mode == Mode.PROTOBUF) {
+                            //CmdMsgDecoder/CmdMsgEncoder相当于ProtobufVarint32FrameDecoder + ProtobufDecoder和
+                            //ProtobufVarint32LengthFieldPrepender + ProtobufEncoder，并且直接在ByteBuf上解析和序列化，不产生中间的byte[]
+                            ch.pipeline().addLast(new CmdMsgDecoder(),
+                                    CMD_MSG_ENCODER,
+                                    new ProtobufInboundHandler(explicitFlushAfter));
+                        } else {
+                            ch.pipeline().addLast(serverHandler);
+                        }
                     }
                 });
 
         try {
-            ChannelFuture future = bootstrap.bind().sync();
-            future.channel().closeFuture().sync();
+            //开启SO_REUSEPORT的时候会绑定多个acceptor，任意一个关闭都认为服务器停止了
+            List<Channel> channels = transport.bind(bootstrap, new InetSocketAddress(ip, port), options);
+            System.out.println("EchoServer started in " + mode + " mode with transport " + transport
+                    + ", acceptors:" + channels.size());
+            channels.get(0).closeFuture().sync();
         } catch (InterruptedException e) {
             e.printStackTrace();
         } finally {
@@ -83,17 +128,68 @@ public class EchoServer {
 
     /**
      * 负责处理protobuf的业务罗技
+     * 每个响应只调用write，在channelReadComplete的时候统一flush一次，客户端pipeline发送请求的时候，
+     * 一次read读到的多个请求的响应只需要一次flush(一次系统调用)。
+     * 保存了每个channel待flush的数量，所以不能Sharable
      */
-    static class ProtobufInboundHandler extends SimpleChannelInboundHandler{
+    static class ProtobufInboundHandler extends SimpleChannelInboundHandler<CmdMessage.CmdMsg> {
+        //所有channel共享的响应缓存，只按照(length, desc)缓存，type在写出的时候填入
+        static final CmdMsgFrameCache RESPONSE_CACHE = new CmdMsgFrameCache();
+        private final int explicitFlushAfter;
+        private int pendingWrites;
+
+        ProtobufInboundHandler() {
+            this(0);
+        }
+
+        /**
+         * @param explicitFlushAfter 一次read中累积了多少个响应就提前flush，避免一次read的请求太多时响应堆积，0表示不提前flush
+         */
+        ProtobufInboundHandler(int explicitFlushAfter) {
+            if (explicitFlushAfter < 0) {
+                throw new IllegalArgumentException("explicitFlushAfter must not be negative: " + explicitFlushAfter);
+            }
+            this.explicitFlushAfter = explicitFlushAfter;
+        }
 
         @Override
-        protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
-            CmdMessage.CmdMsg cmdMsg = (CmdMessage.CmdMsg)(msg);
+        protected void channelRead0(ChannelHandlerContext ctx, CmdMessage.CmdMsg cmdMsg) throws Exception {
             //do something
 
-            //build new message to client
-            CmdMessage.CmdMsg out = CmdMessage.CmdMsg.newBuilder().setLength(8).setType(12).build();
-            ctx.writeAndFlush(out).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+            //build new message to client，直接使用缓存中编码好的报文，不经过builder和CmdMsgEncoder
+            //响应中原样带回请求的type(协议的一部分)，CmdMsgClient通过它把响应和请求对应起来。
+            //type由客户端决定，所以不作为缓存的key，只在前缀中写入
+            ByteBuf out = RESPONSE_CACHE.getWithType(ctx.alloc(), cmdMsg.getType(), 8, "");
+            //使用voidPromise避免每个write都创建一个promise，写失败的时候会触发exceptionCaught，在那里关闭连接
+            ctx.write(out, ctx.voidPromise());
+            if (++pendingWrites == explicitFlushAfter) {
+                flush(ctx);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            flush(ctx);
+            ctx.fireChannelReadComplete();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            pendingWrites = 0;
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            cause.printStackTrace();
+            ctx.close();
+        }
+
+        private void flush(ChannelHandlerContext ctx) {
+            if (pendingWrites > 0) {
+                pendingWrites = 0;
+                ctx.flush();
+            }
         }
     }
 
@@ -126,9 +222,48 @@ public class EchoServer {
     }
 
     /**
-     * 一个简易的解码器
+     * 保持连接的echo服务器
+     * 收到的ByteBuf不解码直接写回去，在channelReadComplete的时候统一flush，连接不会被关闭，
+     * 日志通过SampledLogger采样并异步打印，不会在EventLoop中同步的println
      */
     @ChannelHandler.Sharable
+    static class PipelinedEchoHandler extends ChannelInboundHandlerAdapter {
+        private final SampledLogger logger;
+
+        /**
+         * @param logSampleRate 每多少条消息打印一条，0表示不打印
+         */
+        PipelinedEchoHandler(int logSampleRate) {
+            this.logger = new SampledLogger("EchoServer", logSampleRate);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (logger.shouldSample()) {
+                ByteBuf inMsg = (ByteBuf) msg;
+                //只有被采样到的消息才需要解码成字符串
+                logger.log("Server recevied:" + inMsg.toString(CharsetUtil.UTF_8));
+            }
+            //write会负责release msg，写失败的时候会触发exceptionCaught
+            ctx.write(msg, ctx.voidPromise());
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            ctx.flush();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+
+    /**
+     * 一个简易的解码器，每4个字节产生一个Integer，保留作为兼容的方式，数据量大的时候使用BatchIntMessageDecoder。
+     * 注意ByteToMessageDecoder内部保存了累积的数据，是不能被Sharable的
+     */
     static class IntMessageDecoder extends ByteToMessageDecoder {
 
         @Override
@@ -156,6 +291,159 @@ public class EchoServer {
         }
     }
 
+    /**
+     * 批量的int消息，内部是一个可复用的int数组，通过Recycler进行池化，避免每个int都装箱成一个Integer。
+     * 引用计数归0的时候会自动回收，所以在SimpleChannelInboundHandler中使用时不需要手动release。
+     */
+    static final class IntArrayMessage extends AbstractReferenceCounted {
+        //回收时超过该大小的数组直接丢弃，避免池中的对象长期持有大数组
+        private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+        private static final Recycler<IntArrayMessage> RECYCLER = new Recycler<IntArrayMessage>() {
+            @Override
+            protected IntArrayMessage newObject(Handle<IntArrayMessage> handle) {
+                return new IntArrayMessage(handle);
+            }
+        };
+
+        private final Recycler.Handle<IntArrayMessage> handle;
+        private int[] values = EmptyArrays.EMPTY_INTS;
+        private int length;
+
+        private IntArrayMessage(Recycler.Handle<IntArrayMessage> handle) {
+            this.handle = handle;
+        }
+
+        /**
+         * 获取一个至少可以容纳capacity个int的消息，length为0
+         */
+        static IntArrayMessage newInstance(int capacity) {
+            IntArrayMessage msg = RECYCLER.get();
+            msg.setRefCnt(1);
+            if (msg.values.length < capacity) {
+                msg.values = new int[MathUtil.findNextPositivePowerOfTwo(capacity)];
+            }
+            msg.length = 0;
+            return msg;
+        }
+
+        /**
+         * 内部数组，只有前length个元素有效
+         */
+        int[] array() {
+            return values;
+        }
+
+        int length() {
+            return length;
+        }
+
+        int get(int index) {
+            if (index >= length) {
+                throw new IndexOutOfBoundsException("index: " + index + ", length: " + length);
+            }
+            return values[index];
+        }
+
+        void setLength(int length) {
+            if (length > values.length) {
+                throw new IndexOutOfBoundsException("length: " + length + ", capacity: " + values.length);
+            }
+            this.length = length;
+        }
+
+        @Override
+        public IntArrayMessage touch(Object hint) {
+            return this;
+        }
+
+        @Override
+        protected void deallocate() {
+            length = 0;
+            if (values.length > MAX_RETAINED_CAPACITY) {
+                values = EmptyArrays.EMPTY_INTS;
+            }
+            handle.recycle(this);
+        }
+    }
+
+    /**
+     * 批量的int解码器，一次把当前所有完整的int解码到一个IntArrayMessage中，每次read只产生一个消息，
+     * 而不是每个int一个Integer对象和一次pipeline传递
+     */
+    static class BatchIntMessageDecoder extends ByteToMessageDecoder {
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+            int count = in.readableBytes() >>> 2;
+            if (count == 0) {
+                return;
+            }
+            IntArrayMessage msg = IntArrayMessage.newInstance(count);
+            int[] values = msg.array();
+            int readerIndex = in.readerIndex();
+            if (in.nioBufferCount() == 1) {
+                //只读的批量拷贝，ByteBuffer默认是大端的，和readInt的字节序一致
+                in.nioBuffer(readerIndex, count << 2).asIntBuffer().get(values, 0, count);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    values[i] = in.getInt(readerIndex + (i << 2));
+                }
+            }
+            in.readerIndex(readerIndex + (count << 2));
+            msg.setLength(count);
+            out.add(msg);
+        }
+    }
+
+    /**
+     * 批量的int编码器，支持int[]，IntBuffer(从position到limit，不会修改position)以及IntArrayMessage，
+     * 只申请一次恰好大小的buffer，一次pipeline传递写入所有的int
+     */
+    @ChannelHandler.Sharable
+    static class BatchIntMessageEncoder extends MessageToByteEncoder<Object> {
+
+        @Override
+        public boolean acceptOutboundMessage(Object msg) throws Exception {
+            return msg instanceof int[] || msg instanceof IntBuffer || msg instanceof IntArrayMessage;
+        }
+
+        @Override
+        protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, Object msg, boolean preferDirect) throws Exception {
+            int bytes = count(msg) << 2;
+            return preferDirect ? ctx.alloc().ioBuffer(bytes) : ctx.alloc().heapBuffer(bytes);
+        }
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, Object msg, ByteBuf out) throws Exception {
+            int count = count(msg);
+            out.ensureWritable(count << 2);
+            int writerIndex = out.writerIndex();
+            if (msg instanceof IntBuffer) {
+                IntBuffer buf = (IntBuffer) msg;
+                int position = buf.position();
+                for (int i = 0; i < count; i++) {
+                    out.setInt(writerIndex + (i << 2), buf.get(position + i));
+                }
+            } else {
+                int[] values = msg instanceof int[] ? (int[]) msg : ((IntArrayMessage) msg).array();
+                for (int i = 0; i < count; i++) {
+                    out.setInt(writerIndex + (i << 2), values[i]);
+                }
+            }
+            out.writerIndex(writerIndex + (count << 2));
+        }
+
+        private static int count(Object msg) {
+            if (msg instanceof int[]) {
+                return ((int[]) msg).length;
+            }
+            if (msg instanceof IntBuffer) {
+                return ((IntBuffer) msg).remaining();
+            }
+            return ((IntArrayMessage) msg).length();
+        }
+    }
+
     /**
      * 一个简单的利用IdleStateHandler例子
      */
@@ -0,0 +1,76 @@
+package org.seancheer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 采样的异步日志。
+ * 直接在EventLoop中System.out.println，所有的EventLoop都会竞争System.out的锁，并且要等待终端的IO完成，
+ * 这里只记录1/sampleRate的消息，并且交给一个后台线程去打印，队列满了直接丢弃，不会阻塞调用方。
+ *
+ * @author: seancheer
+ * @date: 2020/3/15
+ **/
+public class SampledLogger {
+    private static final int QUEUE_SIZE = 1024;
+    private final String name;
+    private final int sampleRate;
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param name       日志前缀，同时作为后台线程的名字
+     * @param sampleRate 每sampleRate条消息记录一条，1表示全部记录，0表示全部不记录
+     */
+    public SampledLogger(String name, int sampleRate) {
+        if (sampleRate < 0) {
+            throw new IllegalArgumentException("sampleRate must not be negative: " + sampleRate);
+        }
+        this.name = name;
+        this.sampleRate = sampleRate;
+        if (sampleRate > 0) {
+            Thread writer = new Thread(this::drain, name + "_logger");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * 是否需要记录本条消息，调用方可以先判断，避免为不需要记录的消息构造字符串
+     */
+    public boolean shouldSample() {
+        if (sampleRate == 0) {
+            return false;
+        }
+        //使用ThreadLocalRandom而不是共享的计数器，多个EventLoop之间不会有竞争
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    /**
+     * 记录一条消息，不会阻塞
+     */
+    public void log(String msg) {
+        if (!queue.offer(msg)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * 因为队列满了而丢弃的消息数
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    private void drain() {
+        for (;;) {
+            try {
+                System.out.println(name + ": " + queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
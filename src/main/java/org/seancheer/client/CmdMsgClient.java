@@ -0,0 +1,262 @@
+package org.seancheer.client;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.AbstractChannelPoolMap;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.ChannelPoolMap;
+import io.netty.channel.pool.FixedChannelPool;
+import io.netty.channel.pool.SimpleChannelPool;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.seancheer.protobuf.CmdMessage;
+import org.seancheer.protobuf.CmdMsgDecoder;
+import org.seancheer.protobuf.CmdMsgEncoder;
+import org.seancheer.transport.Transport;
+import org.seancheer.transport.TransportOptions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 可复用的CmdMsg客户端，多个调用方共享少量的长连接。
+ * 每个目标地址对应一个有界的连接池(FixedChannelPool)，限制连接数和等待获取连接的请求数，归还连接的时候做健康检查；
+ * 请求写出之后连接立即归还给连接池，同一个连接上可以同时有多个请求在等待响应，
+ * 通过CmdMsg的type字段作为请求id来对应响应，所以服务器需要在响应中原样带回请求的type(EchoServer的PROTOBUF模式即是如此)，
+ * 调用方设置的type会被覆盖。
+ *
+ * @author: seancheer
+ * @date: 2020/3/20
+ **/
+public class CmdMsgClient implements Closeable {
+    private static final CmdMsgEncoder ENCODER = new CmdMsgEncoder();
+    private final EventLoopGroup group;
+    private final boolean ownGroup;
+    private final ChannelPoolMap<InetSocketAddress, FixedChannelPool> pools;
+    private final Config config;
+
+    /**
+     * 客户端的配置
+     */
+    public static class Config {
+        //每个目标地址最多的连接数
+        private int maxConnectionsPerHost = 4;
+        //所有连接都被占用的时候，最多允许多少个请求等待获取连接
+        private int maxPendingAcquires = 1024;
+        private long acquireTimeoutMillis = 1000;
+        private long requestTimeoutMillis = 3000;
+        //每个连接上最多同时等待响应的请求数
+        private int maxInFlightPerConnection = 1024;
+
+        public Config setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            return this;
+        }
+
+        public Config setMaxPendingAcquires(int maxPendingAcquires) {
+            this.maxPendingAcquires = maxPendingAcquires;
+            return this;
+        }
+
+        public Config setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+            this.acquireTimeoutMillis = acquireTimeoutMillis;
+            return this;
+        }
+
+        public Config setRequestTimeoutMillis(long requestTimeoutMillis) {
+            this.requestTimeoutMillis = requestTimeoutMillis;
+            return this;
+        }
+
+        public Config setMaxInFlightPerConnection(int maxInFlightPerConnection) {
+            this.maxInFlightPerConnection = maxInFlightPerConnection;
+            return this;
+        }
+    }
+
+    public CmdMsgClient() {
+        this(new Config());
+    }
+
+    public CmdMsgClient(Config config) {
+        this(Transport.select().newEventLoopGroup(0), true, config);
+    }
+
+    /**
+     * 使用外部的EventLoopGroup，close的时候不会关闭它
+     */
+    public CmdMsgClient(EventLoopGroup group, Config config) {
+        this(group, false, config);
+    }
+
+    private CmdMsgClient(EventLoopGroup group, boolean ownGroup, final Config config) {
+        this.group = group;
+        this.ownGroup = ownGroup;
+        this.config = config;
+        Transport transport = Transport.select();
+        final Bootstrap bootstrap = transport.newBootstrap(group, TransportOptions.fromSystemProperties())
+                .option(ChannelOption.TCP_NODELAY, true);
+
+        pools = new AbstractChannelPoolMap<InetSocketAddress, FixedChannelPool>() {
+            @Override
+            protected FixedChannelPool newPool(InetSocketAddress key) {
+                return new FixedChannelPool(bootstrap.clone().remoteAddress(key), new AbstractChannelPoolHandler() {
+                    @Override
+                    public void channelCreated(Channel ch) throws Exception {
+                        ch.pipeline().addLast(new CmdMsgDecoder(), ENCODER,
+                                new ResponseDispatcher(config.maxInFlightPerConnection, config.requestTimeoutMillis));
+                    }
+                }, ChannelHealthChecker.ACTIVE, FixedChannelPool.AcquireTimeoutAction.FAIL,
+                        config.acquireTimeoutMillis, config.maxConnectionsPerHost, config.maxPendingAcquires,
+                        true, true);
+            }
+        };
+    }
+
+    /**
+     * 异步的发送一个请求
+     *
+     * @param address 服务器地址
+     * @param request 请求，type字段会被替换为请求id
+     * @return 对应的响应，超时或者连接断开的时候会异常结束
+     */
+    public CompletableFuture<CmdMessage.CmdMsg> send(InetSocketAddress address, CmdMessage.CmdMsg request) {
+        final CompletableFuture<CmdMessage.CmdMsg> result = new CompletableFuture<>();
+        final SimpleChannelPool pool = pools.get(address);
+        pool.acquire().addListener((Future<Channel> acquired) -> {
+            if (!acquired.isSuccess()) {
+                result.completeExceptionally(acquired.cause());
+                return;
+            }
+            Channel channel = acquired.getNow();
+            //写出之后马上归还连接，其他调用方可以继续在这个连接上发送请求
+            channel.writeAndFlush(new PendingRequest(request, result)).addListener(written -> {
+                if (!written.isSuccess()) {
+                    result.completeExceptionally(written.cause());
+                }
+            });
+            pool.release(channel);
+        });
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ((AbstractChannelPoolMap<?, ?>) pools).close();
+        if (ownGroup) {
+            group.shutdownGracefully();
+        }
+    }
+
+    /**
+     * 等待发送的请求，由ResponseDispatcher在EventLoop中分配id
+     */
+    static final class PendingRequest {
+        final CmdMessage.CmdMsg request;
+        final CompletableFuture<CmdMessage.CmdMsg> future;
+        ScheduledFuture<?> timeout;
+
+        PendingRequest(CmdMessage.CmdMsg request, CompletableFuture<CmdMessage.CmdMsg> future) {
+            this.request = request;
+            this.future = future;
+        }
+    }
+
+    /**
+     * 每个连接一个，负责分配请求id并把响应分发给对应的请求，所有的状态只在连接所属的EventLoop中访问，不需要同步
+     */
+    static class ResponseDispatcher extends ChannelDuplexHandler {
+        private final IntObjectMap<PendingRequest> pending = new IntObjectHashMap<>();
+        private final int maxInFlight;
+        private final long requestTimeoutMillis;
+        private int nextId;
+
+        ResponseDispatcher(int maxInFlight, long requestTimeoutMillis) {
+            this.maxInFlight = maxInFlight;
+            this.requestTimeoutMillis = requestTimeoutMillis;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (!(msg instanceof PendingRequest)) {
+                ctx.write(msg, promise);
+                return;
+            }
+            final PendingRequest req = (PendingRequest) msg;
+            if (pending.size() >= maxInFlight) {
+                promise.setFailure(new IllegalStateException("too many in-flight requests: " + pending.size()));
+                return;
+            }
+            //id单调递增，到2^31之后从0重新开始，超时的请求的迟到响应不会被分发给复用了同一个id的新请求
+            while (pending.containsKey(nextId)) {
+                nextId = nextId(nextId);
+            }
+            final int id = nextId;
+            nextId = nextId(nextId);
+            pending.put(id, req);
+            req.timeout = ctx.executor().schedule(() -> {
+                if (pending.remove(id) != null) {
+                    req.future.completeExceptionally(new TimeoutException("request " + id + " timed out"));
+                }
+            }, requestTimeoutMillis, TimeUnit.MILLISECONDS);
+
+            //写失败的请求不会有响应，马上释放占用的id和in-flight名额，不用等到超时
+            ChannelPromise written = promise.unvoid();
+            written.addListener(f -> {
+                if (!f.isSuccess() && pending.get(id) == req) {
+                    pending.remove(id);
+                    req.timeout.cancel(false);
+                }
+            });
+            ctx.write(req.request.toBuilder().setType(id).build(), written);
+        }
+
+        private static int nextId(int id) {
+            return id == Integer.MAX_VALUE ? 0 : id + 1;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (!(msg instanceof CmdMessage.CmdMsg)) {
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            CmdMessage.CmdMsg response = (CmdMessage.CmdMsg) msg;
+            PendingRequest req = pending.remove(response.getType());
+            if (null != req) {
+                req.timeout.cancel(false);
+                req.future.complete(response);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            ClosedChannelException cause = new ClosedChannelException();
+            for (PendingRequest req : pending.values()) {
+                req.timeout.cancel(false);
+                req.future.completeExceptionally(cause);
+            }
+            pending.clear();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package org.seancheer.loadgen;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.seancheer.protobuf.CmdMessage;
+import org.seancheer.protobuf.CmdMsgDecoder;
+import org.seancheer.protobuf.CmdMsgEncoder;
+import org.seancheer.transport.Transport;
+import org.seancheer.transport.TransportOptions;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于EchoClient的压测工具：在M个EventLoop上建立N个连接，以固定的速率(open-loop)发送请求，统计吞吐和延迟分布。
+ * 每个请求都有一个预定的发送时间，延迟从预定的发送时间开始计算，而不是从实际发送的时间开始，
+ * 这样服务器变慢导致客户端发送推迟的时候，等待的时间也会被计入延迟(coordinated omission修正)。
+ * 服务器需要按照请求的顺序返回响应：
+ * echo/int负载对应EchoServer的PIPELINED_ECHO模式，cmd负载对应PROTOBUF模式。
+ *
+ * @author: seancheer
+ * @date: 2020/3/18
+ **/
+public class LoadGenerator {
+    //发送的节拍，每个节拍发送所有已经到期的请求，然后flush一次
+    private static final long TICK_MICROS = 1000;
+    //停止发送之后等待剩余响应的最长时间
+    private static final long DRAIN_TIMEOUT_MILLIS = 2000;
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int threads;
+    private final int rate;
+    private final int durationSeconds;
+    private final PayloadType payloadType;
+    private final int payloadSize;
+
+    /**
+     * 请求的负载类型
+     */
+    public enum PayloadType {
+        /**
+         * 固定大小的字节，由服务器原样返回
+         */
+        ECHO,
+        /**
+         * 4个字节的int，由服务器原样返回
+         */
+        INT,
+        /**
+         * 带varint32长度字段的CmdMsg，服务器对每个请求返回一个CmdMsg
+         */
+        CMD
+    }
+
+    /**
+     * 用法：LoadGenerator [key=value ...]
+     * host=127.0.0.1 port=12345 connections=16 threads=cpu核数 rate=10000(每秒总请求数) duration=10(秒)
+     * payload=echo|int|cmd size=64(echo负载的字节数)
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int idx = arg.indexOf('=');
+            if (idx <= 0) {
+                throw new IllegalArgumentException("expected key=value but got: " + arg);
+            }
+            opts.put(arg.substring(0, idx), arg.substring(idx + 1));
+        }
+        LoadGenerator generator = new LoadGenerator(
+                opts.getOrDefault("host", "127.0.0.1"),
+                Integer.parseInt(opts.getOrDefault("port", "12345")),
+                Integer.parseInt(opts.getOrDefault("connections", "16")),
+                Integer.parseInt(opts.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(opts.getOrDefault("rate", "10000")),
+                Integer.parseInt(opts.getOrDefault("duration", "10")),
+                PayloadType.valueOf(opts.getOrDefault("payload", "echo").toUpperCase(Locale.ROOT)),
+                Integer.parseInt(opts.getOrDefault("size", "64")));
+        generator.run();
+    }
+
+    public LoadGenerator(String host, int port, int connections, int threads, int rate, int durationSeconds,
+                         PayloadType payloadType, int payloadSize) {
+        if (connections <= 0 || threads <= 0 || rate <= 0 || durationSeconds <= 0 || payloadSize <= 0) {
+            throw new IllegalArgumentException("connections, threads, rate, duration and size must be positive");
+        }
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.threads = threads;
+        this.rate = rate;
+        this.durationSeconds = durationSeconds;
+        this.payloadType = payloadType;
+        this.payloadSize = payloadType == PayloadType.INT ? 4 : payloadSize;
+    }
+
+    /**
+     * 执行压测并打印结果
+     */
+    public void run() throws InterruptedException {
+        Transport transport = Transport.select();
+        EventLoopGroup group = transport.newEventLoopGroup(threads);
+        final List<LoadHandler> handlers = new ArrayList<>(connections);
+        final ByteBuf payload = newPayload();
+        final long intervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(connections) / rate);
+
+        Bootstrap bootstrap = transport.newBootstrap(group, TransportOptions.fromSystemProperties());
+        bootstrap.remoteAddress(new InetSocketAddress(host, port))
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        LoadHandler handler = new LoadHandler(payloadType, payload, payloadSize, intervalNanos);
+                        synchronized (handlers) {
+                            handlers.add(handler);
+                        }
+                        if (payloadType == PayloadType.CMD) {
+                            ch.pipeline().addLast(new CmdMsgDecoder(), new CmdMsgEncoder());
+                        }
+                        ch.pipeline().addLast(handler);
+                    }
+                });
+
+        List<Channel> channels = new ArrayList<>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                channels.add(bootstrap.connect().sync().channel());
+            }
+            System.out.println(String.format("LoadGenerator: %d connections on %d %s event loops, %d req/s, %s payload, %ds",
+                    connections, threads, transport, rate, payloadType, durationSeconds));
+
+            long start = System.nanoTime();
+            synchronized (handlers) {
+                for (LoadHandler handler : handlers) {
+                    handler.executor().execute(() -> handler.start(start));
+                }
+            }
+            TimeUnit.SECONDS.sleep(durationSeconds);
+            //吞吐量只统计停止发送之前完成的请求，drain期间收到的响应只用于延迟统计
+            long elapsed = System.nanoTime() - start;
+            synchronized (handlers) {
+                for (LoadHandler handler : handlers) {
+                    handler.executor().execute(handler::stopSending);
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(DRAIN_TIMEOUT_MILLIS);
+
+            for (Channel channel : channels) {
+                channel.close().sync();
+            }
+            report(handlers, elapsed);
+        } finally {
+            group.shutdownGracefully().sync();
+            payload.release();
+        }
+    }
+
+    private ByteBuf newPayload() {
+        ByteBuf buf = Unpooled.directBuffer(payloadSize);
+        if (payloadType == PayloadType.INT) {
+            buf.writeInt(0x12345678);
+        } else {
+            for (int i = 0; i < payloadSize; i++) {
+                buf.writeByte('a' + i % 26);
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * 所有channel关闭之后再汇总，此时所有的handler都不会再被EventLoop访问了
+     */
+    private void report(List<LoadHandler> handlers, long elapsedNanos) {
+        LatencyHistogram total = new LatencyHistogram();
+        long sent = 0;
+        long completedBeforeStop = 0;
+        long unanswered = 0;
+        synchronized (handlers) {
+            for (LoadHandler handler : handlers) {
+                total.merge(handler.histogram);
+                sent += handler.sent;
+                completedBeforeStop += handler.completedBeforeStop;
+                unanswered += handler.outstanding();
+            }
+        }
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("sent: %d, completed: %d, unanswered: %d", sent, total.count(), unanswered));
+        System.out.println(String.format("throughput: %.1f req/s", completedBeforeStop / seconds));
+        System.out.println(String.format("latency(us) mean: %.1f, p50: %.1f, p90: %.1f, p99: %.1f, p99.9: %.1f, max: %.1f",
+                total.mean() / 1000, total.percentile(50) / 1000.0, total.percentile(90) / 1000.0,
+                total.percentile(99) / 1000.0, total.percentile(99.9) / 1000.0, total.max() / 1000.0));
+    }
+
+    /**
+     * 每个连接一个，只在连接所属的EventLoop中访问
+     */
+    static class LoadHandler extends ChannelInboundHandlerAdapter {
+        private static final CmdMessage.CmdMsg REQUEST = CmdMessage.CmdMsg.newBuilder().setLength(4).setType(1).build();
+        private final PayloadType payloadType;
+        private final ByteBuf payload;
+        private final int responseSize;
+        private final long intervalNanos;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        //还没有收到响应的请求的预定发送时间，按照发送顺序排列的环形队列
+        private long[] intendedTimes = new long[1024];
+        private int head;
+        private int tail;
+        private long nextSendTime;
+        private long receivedBytes;
+        long sent;
+        //停止发送之前收到响应的请求数
+        long completedBeforeStop;
+        private boolean stopped;
+        private ChannelHandlerContext ctx;
+        private ScheduledFuture<?> ticker;
+
+        LoadHandler(PayloadType payloadType, ByteBuf payload, int responseSize, long intervalNanos) {
+            this.payloadType = payloadType;
+            this.payload = payload;
+            this.responseSize = responseSize;
+            this.intervalNanos = intervalNanos;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            this.ctx = ctx;
+        }
+
+        EventExecutor executor() {
+            return ctx.executor();
+        }
+
+        void start(long startNanos) {
+            nextSendTime = startNanos;
+            ticker = ctx.executor().scheduleAtFixedRate(this::tick, 0, TICK_MICROS, TimeUnit.MICROSECONDS);
+        }
+
+        void stopSending() {
+            stopped = true;
+            if (null != ticker) {
+                ticker.cancel(false);
+            }
+        }
+
+        int outstanding() {
+            return (tail - head) & (intendedTimes.length - 1);
+        }
+
+        /**
+         * 发送所有预定时间已经到了的请求，即使因为服务器慢或者GC导致节拍被推迟，也会按照原定的时间补发
+         */
+        private void tick() {
+            if (!ctx.channel().isActive()) {
+                stopSending();
+                return;
+            }
+            long now = System.nanoTime();
+            boolean wrote = false;
+            while (nextSendTime <= now) {
+                enqueue(nextSendTime);
+                if (payloadType == PayloadType.CMD) {
+                    ctx.write(REQUEST, ctx.voidPromise());
+                } else {
+                    ctx.write(payload.retainedDuplicate(), ctx.voidPromise());
+                }
+                nextSendTime += intervalNanos;
+                sent++;
+                wrote = true;
+            }
+            if (wrote) {
+                ctx.flush();
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            long now = System.nanoTime();
+            try {
+                if (msg instanceof ByteBuf) {
+                    receivedBytes += ((ByteBuf) msg).readableBytes();
+                    while (receivedBytes >= responseSize) {
+                        receivedBytes -= responseSize;
+                        complete(now);
+                    }
+                } else {
+                    complete(now);
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            stopSending();
+            //同一个节拍中的多个write都可能失败，只在第一次的时候打印
+            if (ctx.channel().isOpen()) {
+                cause.printStackTrace();
+                ctx.close();
+            }
+        }
+
+        private void complete(long now) {
+            if (head == tail) {
+                return;
+            }
+            histogram.record(now - intendedTimes[head]);
+            if (!stopped) {
+                completedBeforeStop++;
+            }
+            head = (head + 1) & (intendedTimes.length - 1);
+        }
+
+        private void enqueue(long intendedTime) {
+            intendedTimes[tail] = intendedTime;
+            tail = (tail + 1) & (intendedTimes.length - 1);
+            if (tail == head) {
+                grow();
+            }
+        }
+
+        /**
+         * 队列满了之后扩容为原来的两倍，保持长度为2的幂
+         */
+        private void grow() {
+            int length = intendedTimes.length;
+            long[] newTimes = new long[length << 1];
+            //队列已满，head == tail，从head开始的length个元素依次拷贝
+            System.arraycopy(intendedTimes, head, newTimes, 0, length - head);
+            System.arraycopy(intendedTimes, 0, newTimes, length - head, head);
+            intendedTimes = newTimes;
+            head = 0;
+            tail = length;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.seancheer.protobuf;
+
+import com.google.protobuf.CodedInputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 解析带varint32长度字段的CmdMsg，相当于ProtobufVarint32FrameDecoder + ProtobufDecoder。
+ * ProtobufDecoder对于direct buffer会先把整个报文拷贝到一个byte[]中再解析，这里直接通过ByteBuf的nioBuffer构造CodedInputStream，
+ * 对于direct buffer protobuf会通过unsafe直接读取堆外内存，不产生中间数组；同时拆包和解析在一个handler中完成，
+ * 不需要为每个报文产生一个slice。
+ *
+ * @author: seancheer
+ * @date: 2020/3/12
+ **/
+public class CmdMsgDecoder extends ByteToMessageDecoder {
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+    private final int maxFrameLength;
+
+    public CmdMsgDecoder() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public CmdMsgDecoder(int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength must be positive: " + maxFrameLength);
+        }
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        in.markReaderIndex();
+        int length = readRawVarint32(in);
+        if (length < 0) {
+            //长度字段还不完整
+            in.resetReaderIndex();
+            return;
+        }
+        if (length > maxFrameLength) {
+            throw new TooLongFrameException("frame length " + length + " exceeds max " + maxFrameLength);
+        }
+        if (in.readableBytes() < length) {
+            in.resetReaderIndex();
+            return;
+        }
+
+        out.add(parse(in, in.readerIndex(), length));
+        in.skipBytes(length);
+    }
+
+    /**
+     * 直接从ByteBuf中解析一个不带长度字段的CmdMsg，不会修改readerIndex，websocket的binary frame也使用该方法
+     *
+     * @param in
+     * @param index
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    public static CmdMessage.CmdMsg parse(ByteBuf in, int index, int length) throws IOException {
+        CodedInputStream input;
+        if (in.nioBufferCount() == 1) {
+            input = CodedInputStream.newInstance(in.nioBuffer(index, length));
+        } else if (in.hasArray()) {
+            input = CodedInputStream.newInstance(in.array(), in.arrayOffset() + index, length);
+        } else {
+            //CompositeByteBuf等由多块内存组成的buffer，通过流的方式读取，同样不需要拷贝整个报文
+            input = CodedInputStream.newInstance(new ByteBufInputStream(in.slice(index, length)));
+        }
+        return CmdMessage.CmdMsg.parseFrom(input);
+    }
+
+    /**
+     * 读取varint32，数据不足的时候返回-1
+     */
+    static int readRawVarint32(ByteBuf in) {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!in.isReadable()) {
+                return -1;
+            }
+            byte b = in.readByte();
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (result < 0) {
+                    throw new CorruptedFrameException("negative length: " + result);
+                }
+                return result;
+            }
+        }
+        throw new CorruptedFrameException("length wider than 32-bit");
+    }
+}
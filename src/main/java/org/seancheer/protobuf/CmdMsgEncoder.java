@@ -0,0 +1,64 @@
+package org.seancheer.protobuf;
+
+import com.google.protobuf.CodedOutputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+import java.io.IOException;
+
+/**
+ * 把CmdMsg编码成带varint32长度字段的报文，相当于ProtobufEncoder + ProtobufVarint32LengthFieldPrepender。
+ * 先通过getSerializedSize()计算出准确的大小，只申请一次恰好大小的pooled direct buffer，
+ * 长度字段和消息体通过同一个CodedOutputStream直接写入buffer，不会产生中间的byte[]，也不需要两个buffer。
+ *
+ * @author: seancheer
+ * @date: 2020/3/12
+ **/
+@ChannelHandler.Sharable
+public class CmdMsgEncoder extends MessageToByteEncoder<CmdMessage.CmdMsg> {
+
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, CmdMessage.CmdMsg msg, boolean preferDirect)
+            throws Exception {
+        int frameLength = frameLength(msg.getSerializedSize());
+        return preferDirect ? ctx.alloc().ioBuffer(frameLength, frameLength) : ctx.alloc().heapBuffer(frameLength, frameLength);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, CmdMessage.CmdMsg msg, ByteBuf out) throws Exception {
+        writeFrame(msg, out);
+    }
+
+    /**
+     * 把msg连同长度字段一起写入out
+     */
+    public static void writeFrame(CmdMessage.CmdMsg msg, ByteBuf out) throws IOException {
+        //getSerializedSize的结果在message内部有缓存，多次调用没有额外开销
+        int bodyLength = msg.getSerializedSize();
+        int frameLength = frameLength(bodyLength);
+        out.ensureWritable(frameLength);
+        int writerIndex = out.writerIndex();
+
+        //nioBuffer和ByteBuf共享同一块内存，写完之后手动推进writerIndex即可
+        boolean contiguous = out.nioBufferCount() == 1;
+        CodedOutputStream output = contiguous
+                ? CodedOutputStream.newInstance(out.nioBuffer(writerIndex, frameLength))
+                : CodedOutputStream.newInstance(new ByteBufOutputStream(out), frameLength);
+        output.writeUInt32NoTag(bodyLength);
+        msg.writeTo(output);
+        output.flush();
+        if (contiguous) {
+            out.writerIndex(writerIndex + frameLength);
+        }
+    }
+
+    /**
+     * 长度字段加上消息体的总长度
+     */
+    public static int frameLength(int bodyLength) {
+        return CodedOutputStream.computeUInt32SizeNoTag(bodyLength) + bodyLength;
+    }
+}
@@ -0,0 +1,229 @@
+package org.seancheer.protobuf;
+
+import com.google.protobuf.CodedOutputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 已经编码好的CmdMsg响应缓存，缓存的是带varint32长度字段的完整报文，可以直接写到channel中，
+ * 命中的时候既不需要通过builder创建消息，也不需要重新序列化。
+ * 报文保存在unreleasable的direct buffer中，每次返回一个retainedDuplicate，多个channel可以同时写同一份内存。
+ * 命中的路径上没有锁，多个EventLoop可以同时读取，只在引用位没有设置的时候设置一次；
+ * 超过maxEntries的时候按照CLOCK(second chance)算法近似LRU淘汰：引用位被设置过的报文清除引用位之后跳过，淘汰第一个最近没有被访问过的报文。
+ * 被淘汰的报文不会被显式释放(可能还有正在发送的duplicate)，底层的ByteBuffer会在没有引用后由GC回收。
+ *
+ * @author: seancheer
+ * @date: 2020/3/14
+ **/
+public class CmdMsgFrameCache {
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    //type是第2个字段，wire type为varint
+    private static final int TYPE_TAG = 2 << 3;
+    //不超过该长度的消息体直接拷贝到前缀所在的buffer中，比组合两个buffer更便宜
+    private static final int COPY_THRESHOLD = 64;
+    private final ConcurrentHashMap<Key, Cached> frames = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CmdMsgFrameCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public CmdMsgFrameCache(final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * 获取(type, length, desc)对应的报文，调用方负责release返回的buffer(写入channel后由netty负责)
+     */
+    public ByteBuf get(int type, int length, String desc) {
+        Key key = new Key(type, length, desc);
+        Cached cached = frames.get(key);
+        if (null != cached) {
+            hits.increment();
+            //已经设置了的话不再写，避免多个线程反复写同一个cache line
+            if (!cached.referenced) {
+                cached.referenced = true;
+            }
+            return cached.frame.retainedDuplicate();
+        }
+
+        misses.increment();
+        //并发miss的时候可能会编码多次，但结果是一样的，只有一个会被放入缓存
+        cached = new Cached(encode(CmdMessage.CmdMsg.newBuilder().setType(type).setLength(length).setDesc(key.desc).build()));
+        Cached existing = frames.putIfAbsent(key, cached);
+        if (null != existing) {
+            return existing.frame.retainedDuplicate();
+        }
+        evictIfNecessary(key);
+        return cached.frame.retainedDuplicate();
+    }
+
+    /**
+     * 获取(type, length, desc)对应的报文，用于type由客户端决定(比如作为请求id原样带回)的场景。
+     * 缓存中只保存和type无关的(length, desc)部分，不会因为客户端使用的type太多而被刷掉；
+     * type字段和新的长度字段写在一个很小的前缀中，protobuf允许字段以任意的顺序出现，所以type可以放在最前面。
+     * 整个过程不需要builder，也不需要序列化，调用方负责release返回的buffer
+     */
+    public ByteBuf getWithType(ByteBufAllocator alloc, int type, int length, String desc) {
+        ByteBuf frame = get(0, length, desc);
+        if (0 == type) {
+            //proto3不编码默认值，type为0的报文就是缓存的报文
+            return frame;
+        }
+        int headerLength = varintLength(frame);
+        int bodyLength = frame.readableBytes() - headerLength;
+        frame.skipBytes(headerLength);
+        int typeFieldLength = 1 + CodedOutputStream.computeInt32SizeNoTag(type);
+        int newBodyLength = typeFieldLength + bodyLength;
+        int prefixLength = CodedOutputStream.computeUInt32SizeNoTag(newBodyLength) + typeFieldLength;
+
+        boolean copy = bodyLength <= COPY_THRESHOLD;
+        ByteBuf out = alloc.ioBuffer(copy ? prefixLength + bodyLength : prefixLength);
+        writeVarint(out, newBodyLength);
+        out.writeByte(TYPE_TAG);
+        //int32的负数按照64位进行varint编码
+        writeVarint(out, type);
+        if (copy) {
+            out.writeBytes(frame);
+            frame.release();
+            return out;
+        }
+        return alloc.compositeDirectBuffer(2).addComponents(true, out, frame);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CmdMsgFrameCache[size:%d, hits:%d, misses:%d, evictions:%d]",
+                size(), hits(), misses(), evictions());
+    }
+
+    /**
+     * 插入之后超过了maxEntries就淘汰(跳过刚插入的)，第一遍所有的报文都被访问过的话，第二遍时引用位已经都被清除了，
+     * 所以最多遍历两遍。并发插入的时候size可能短暂的超过maxEntries
+     */
+    private void evictIfNecessary(Key inserted) {
+        for (int pass = 0; pass < 2 && frames.size() > maxEntries; pass++) {
+            Iterator<Map.Entry<Key, Cached>> it = frames.entrySet().iterator();
+            while (frames.size() > maxEntries && it.hasNext()) {
+                Map.Entry<Key, Cached> entry = it.next();
+                Cached cached = entry.getValue();
+                if (entry.getKey().equals(inserted)) {
+                    continue;
+                }
+                if (cached.referenced) {
+                    //second chance
+                    cached.referenced = false;
+                    continue;
+                }
+                if (frames.remove(entry.getKey(), cached)) {
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    private static int varintLength(ByteBuf frame) {
+        int i = frame.readerIndex();
+        while ((frame.getByte(i) & 0x80) != 0) {
+            i++;
+        }
+        return i - frame.readerIndex() + 1;
+    }
+
+    private static void writeVarint(ByteBuf out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static ByteBuf encode(CmdMessage.CmdMsg msg) {
+        int bodyLength = msg.getSerializedSize();
+        //使用jdk的direct ByteBuffer，由GC负责回收，淘汰的时候不需要显式释放
+        ByteBuffer buf = ByteBuffer.allocateDirect(CmdMsgEncoder.frameLength(bodyLength));
+        try {
+            CodedOutputStream output = CodedOutputStream.newInstance(buf);
+            output.writeUInt32NoTag(bodyLength);
+            msg.writeTo(output);
+            output.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buf.flip();
+        return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(buf));
+    }
+
+    /**
+     * 缓存的报文和CLOCK的引用位，新插入的报文没有引用位，只被用过一次的报文会先被淘汰
+     */
+    private static final class Cached {
+        private final ByteBuf frame;
+        private volatile boolean referenced;
+
+        Cached(ByteBuf frame) {
+            this.frame = frame;
+        }
+    }
+
+    private static final class Key {
+        private final int type;
+        private final int length;
+        final String desc;
+
+        Key(int type, int length, String desc) {
+            this.type = type;
+            this.length = length;
+            this.desc = null == desc ? "" : desc;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return type == other.type && length == other.length && desc.equals(other.desc);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, length, desc);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.seancheer.rawnio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 原生nio使用的direct buffer池。
+ * 对于heap buffer，jdk在每次read/write的时候都会在内部先拷贝到一块临时的direct buffer中，直接使用direct buffer可以省掉这次拷贝。
+ * direct buffer的申请和回收代价都很高，所以这里按照大小分为若干个size class，每个size class从一整块slab中切分出固定大小的buffer，
+ * 每个线程持有一个小的本地缓存，缓存满了再归还到全局的空闲队列中。
+ * buffer使用完成后需要显式的调用release，release之后不能再使用该buffer，也不能重复release。
+ */
+public class BufferPool {
+    public static final BufferPool DEFAULT = new BufferPool();
+
+    private static final int MIN_SIZE_SHIFT = 9;
+    //size class: 512B, 1K, 2K ... 64K
+    private static final int SIZE_CLASS_COUNT = 8;
+    //超过该大小的buffer不会被池化
+    public static final int MAX_POOLED_SIZE = 1 << (MIN_SIZE_SHIFT + SIZE_CLASS_COUNT - 1);
+    private static final int SLAB_SIZE = 256 * 1024;
+    private static final int THREAD_CACHE_SIZE = 32;
+
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> freeLists = new ArrayList<>(SIZE_CLASS_COUNT);
+    private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(ThreadCache::new);
+    private final AtomicLong slabBytes = new AtomicLong();
+    private final AtomicLong unpooledAllocations = new AtomicLong();
+
+    public BufferPool() {
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            freeLists.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * 申请一个容量至少为minCapacity的direct buffer，position为0，limit为capacity
+     *
+     * @param minCapacity
+     * @return
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > MAX_POOLED_SIZE) {
+            //超大的buffer直接申请，release的时候也不会放回池中
+            unpooledAllocations.incrementAndGet();
+            return ByteBuffer.allocateDirect(minCapacity);
+        }
+        int sizeClass = sizeClass(minCapacity);
+        ByteBuffer buf = threadCache.get().poll(sizeClass);
+        if (null == buf) {
+            buf = freeLists.get(sizeClass).poll();
+        }
+        if (null == buf) {
+            buf = allocateSlab(sizeClass);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * 归还buffer
+     *
+     * @param buf 必须是从该pool中acquire到的buffer
+     */
+    public void release(ByteBuffer buf) {
+        if (null == buf || !buf.isDirect() || buf.capacity() > MAX_POOLED_SIZE) {
+            return;
+        }
+        int sizeClass = sizeClass(buf.capacity());
+        if (sizeOf(sizeClass) != buf.capacity()) {
+            return;
+        }
+        if (!threadCache.get().offer(sizeClass, buf)) {
+            freeLists.get(sizeClass).offer(buf);
+        }
+    }
+
+    /**
+     * 把当前线程的本地缓存归还到全局队列中，线程退出之前应该调用，否则缓存中的buffer就无法被其他线程复用了
+     */
+    public void trimCurrentThreadCache() {
+        ThreadCache cache = threadCache.get();
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            ByteBuffer buf;
+            while ((buf = cache.poll(i)) != null) {
+                freeLists.get(i).offer(buf);
+            }
+        }
+        threadCache.remove();
+    }
+
+    /**
+     * 已经申请的slab占用的direct内存大小
+     */
+    public long slabBytes() {
+        return slabBytes.get();
+    }
+
+    public long unpooledAllocations() {
+        return unpooledAllocations.get();
+    }
+
+    /**
+     * 申请一整块slab并切分，返回其中一个，其余的放入全局空闲队列
+     */
+    private ByteBuffer allocateSlab(int sizeClass) {
+        int size = sizeOf(sizeClass);
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        slabBytes.addAndGet(SLAB_SIZE);
+        ByteBuffer first = null;
+        for (int offset = 0; offset + size <= SLAB_SIZE; offset += size) {
+            slab.limit(offset + size).position(offset);
+            ByteBuffer buf = slab.slice();
+            if (null == first) {
+                first = buf;
+            } else {
+                freeLists.get(sizeClass).offer(buf);
+            }
+        }
+        return first;
+    }
+
+    private static int sizeClass(int capacity) {
+        if (capacity <= (1 << MIN_SIZE_SHIFT)) {
+            return 0;
+        }
+        //向上取整到2的幂
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift - MIN_SIZE_SHIFT;
+    }
+
+    private static int sizeOf(int sizeClass) {
+        return 1 << (MIN_SIZE_SHIFT + sizeClass);
+    }
+
+    /**
+     * 线程本地缓存，只会被所属线程访问，不需要同步
+     */
+    private static final class ThreadCache {
+        private final List<ArrayDeque<ByteBuffer>> caches = new ArrayList<>(SIZE_CLASS_COUNT);
+
+        ThreadCache() {
+            for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+                caches.add(new ArrayDeque<>(THREAD_CACHE_SIZE));
+            }
+        }
+
+        ByteBuffer poll(int sizeClass) {
+            return caches.get(sizeClass).pollLast();
+        }
+
+        boolean offer(int sizeClass, ByteBuffer buf) {
+            ArrayDeque<ByteBuffer> cache = caches.get(sizeClass);
+            if (cache.size() >= THREAD_CACHE_SIZE) {
+                return false;
+            }
+            cache.addLast(buf);
+            return true;
+        }
+    }
+}
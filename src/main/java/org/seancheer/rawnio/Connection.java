@@ -0,0 +1,184 @@
+package org.seancheer.rawnio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 每个连接的状态对象，作为SelectionKey的attachment，由所属的Reactor线程驱动，
+ * 替代ReadWriteRunnable中每个线程自己循环State的方式。
+ * 如果指定了LengthPrefix，那么按照长度字段进行拆包，并把每个报文原样加上长度字段echo回去，
+ * 一次read中的多个报文只会触发一次flush；否则每次读到数据都回复一个固定的消息。
+ */
+public class Connection {
+    private static final int BUF_SIZE = 1024;
+    //只读的共享响应，每次发送时duplicate一份独立的position/limit即可，使用direct buffer避免jdk内部的拷贝
+    private static final ByteBuffer RESPONSE = directBuffer("this is server's message".getBytes(StandardCharsets.UTF_8));
+    private final long id;
+    private final SocketChannel channel;
+    private final Reactor reactor;
+    private SelectionKey key;
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final BufferPool pool = BufferPool.DEFAULT;
+    //只有在处理读事件的时候才从pool中申请，空闲的连接不占用任何buffer
+    private ByteBuffer readBuf;
+    private final FrameDecoder decoder;
+    private final FrameEncoder encoder;
+    //READDING表示正常读写，WRITING表示待发送数据超过高水位线，暂停了读取，只等待写完
+    private State state = State.READDING;
+
+    /**
+     * @param prefix 为null表示不进行拆包
+     */
+    Connection(long id, SocketChannel channel, Reactor reactor, LengthPrefix prefix) {
+        this.id = id;
+        this.channel = channel;
+        this.reactor = reactor;
+        this.decoder = null == prefix ? null : new FrameDecoder(prefix);
+        this.encoder = null == prefix ? null : new FrameEncoder(prefix);
+    }
+
+    static ByteBuffer directBuffer(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes).flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * 处理selector返回的就绪事件
+     *
+     * @param key
+     */
+    void handle(SelectionKey key) {
+        try {
+            if (key.isReadable() && state == State.READDING) {
+                onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                onWritable();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void onReadable() throws IOException {
+        readBuf = pool.acquire(BUF_SIZE);
+        int readNum;
+        try {
+            readNum = channel.read(readBuf);
+            if (readNum > 0 && null != decoder) {
+                readBuf.flip();
+                //回调出来的报文引用的是readBuf，encodeCopy会在release之前把它拷贝到发送队列中
+                decoder.decode(readBuf, this::onFrame);
+            }
+        } finally {
+            pool.release(readBuf);
+            readBuf = null;
+        }
+        //如果读到的数据为-1，说明远端已经关闭了连接
+        if (readNum < 0) {
+            close();
+            return;
+        }
+        if (readNum == 0) {
+            return;
+        }
+
+        if (null == decoder) {
+            outbound.enqueue(RESPONSE.duplicate());
+        }
+        flush();
+    }
+
+    private void onFrame(ByteBuffer frame) {
+        encoder.encodeCopy(frame, outbound);
+    }
+
+    /**
+     * 发送数据，写不完的部分留在队列中等待OP_WRITE，不能像ReadWriteRunnable那样sleep，
+     * 因为同一个线程上还有其他的连接
+     *
+     * @param buf
+     * @throws IOException
+     */
+    public void write(ByteBuffer buf) throws IOException {
+        outbound.enqueue(buf);
+        flush();
+    }
+
+    private void flush() throws IOException {
+        //已经在等待OP_WRITE了，说明socket缓冲区是满的，直接写只会写出0字节
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            if (state == State.READDING && outbound.isAboveHighWaterMark()) {
+                suspendRead();
+            }
+            return;
+        }
+        onWritable();
+    }
+
+    private void onWritable() throws IOException {
+        if (outbound.flush(channel)) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        if (state == State.READDING && outbound.isAboveHighWaterMark()) {
+            suspendRead();
+        } else if (state == State.WRITING && outbound.isBelowLowWaterMark()) {
+            resumeRead();
+        }
+    }
+
+    /**
+     * 对端消费太慢，停止读取新的请求，避免待发送的数据无限堆积
+     */
+    private void suspendRead() {
+        state = State.WRITING;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    private void resumeRead() {
+        state = State.READDING;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * 关闭连接，只能在所属的reactor线程中调用
+     */
+    public void close() {
+        if (state == State.FINISHED) {
+            return;
+        }
+        state = State.FINISHED;
+        if (null != key) {
+            key.cancel();
+        }
+        outbound.clear();
+        if (null != decoder) {
+            decoder.release();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        reactor.connectionClosed(this);
+    }
+}
@@ -0,0 +1,151 @@
+package org.seancheer.rawnio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 基于长度字段的拆包器。
+ * 一次read可能读到半个报文，也可能读到多个报文，这里把不完整的部分累积到cumulation中，等下一次read再继续拼接，
+ * 完整的报文通过FrameHandler回调出去。如果报文在本次读到的buffer中是连续的，直接回调它的slice，不进行任何拷贝。
+ * 非线程安全，只能在所属的selector线程中使用。
+ */
+public class FrameDecoder {
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+    private static final int MIN_CUMULATION_SIZE = 1024;
+
+    private final LengthPrefix prefix;
+    private final int maxFrameLength;
+    private final BufferPool pool;
+    //累积的不完整数据，处于写模式，没有残留数据的时候为null，不占用内存
+    private ByteBuffer cumulation;
+    //已经解析出长度字段但是还不完整的报文的总字节数(包括长度字段)，没有的时候为0
+    private int pendingFrameBytes;
+
+    /**
+     * 完整报文的回调，frame只在回调期间有效，如果需要保留，必须自行拷贝
+     */
+    public interface FrameHandler {
+        void onFrame(ByteBuffer frame) throws IOException;
+    }
+
+    public FrameDecoder(LengthPrefix prefix) {
+        this(prefix, DEFAULT_MAX_FRAME_LENGTH, BufferPool.DEFAULT);
+    }
+
+    public FrameDecoder(LengthPrefix prefix, int maxFrameLength, BufferPool pool) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength must be positive: " + maxFrameLength);
+        }
+        this.prefix = prefix;
+        this.maxFrameLength = maxFrameLength;
+        this.pool = pool;
+    }
+
+    /**
+     * 处理新读到的数据
+     *
+     * @param in      处于读模式的buffer，调用完成后会被全部消费
+     * @param handler
+     * @throws IOException 报文超过最大长度或者长度字段非法
+     */
+    public void decode(ByteBuffer in, FrameHandler handler) throws IOException {
+        if (null == cumulation) {
+            //没有残留数据，直接在in上解析，连续的报文不需要拷贝
+            decodeFrames(in, handler);
+            if (in.hasRemaining()) {
+                //已经知道报文长度的时候按照报文的大小申请，后续的read不需要再扩容
+                cumulation = pool.acquire(Math.max(Math.max(in.remaining(), presize()), MIN_CUMULATION_SIZE));
+                cumulation.put(in);
+            }
+            return;
+        }
+
+        ensureWritable(in.remaining());
+        cumulation.put(in);
+        cumulation.flip();
+        try {
+            decodeFrames(cumulation, handler);
+        } finally {
+            if (cumulation.hasRemaining()) {
+                cumulation.compact();
+                if (cumulation.capacity() < presize()) {
+                    grow(presize());
+                }
+            } else {
+                releaseCumulation();
+            }
+        }
+    }
+
+    /**
+     * 当前累积的还未成为完整报文的字节数
+     */
+    public int pendingBytes() {
+        return null == cumulation ? 0 : cumulation.position();
+    }
+
+    /**
+     * 连接关闭的时候需要调用，归还cumulation
+     */
+    public void release() {
+        releaseCumulation();
+    }
+
+    private void decodeFrames(ByteBuffer buf, FrameHandler handler) throws IOException {
+        pendingFrameBytes = 0;
+        while (buf.hasRemaining()) {
+            int start = buf.position();
+            int length = prefix.readLength(buf);
+            if (length < 0) {
+                return;
+            }
+            if (length > maxFrameLength) {
+                throw new IOException(String.format("frame length %d exceeds max %d", length, maxFrameLength));
+            }
+            if (buf.remaining() < length) {
+                //报文还不完整，回退到长度字段之前，等待更多的数据
+                pendingFrameBytes = buf.position() - start + length;
+                buf.position(start);
+                return;
+            }
+
+            int frameEnd = buf.position() + length;
+            ByteBuffer frame = buf.duplicate();
+            frame.limit(frameEnd);
+            buf.position(frameEnd);
+            handler.onFrame(frame.slice());
+        }
+    }
+
+    /**
+     * 按照长度字段预先申请的大小。长度是对端声明的，只发送一个长度字段就能让服务器申请maxFrameLength的内存并且一直持有，
+     * 所以最多只预先申请到BufferPool中最大的size class，更大的报文根据实际收到的字节数按照2倍扩容
+     */
+    private int presize() {
+        return Math.min(pendingFrameBytes, BufferPool.MAX_POOLED_SIZE);
+    }
+
+    private void ensureWritable(int bytes) {
+        if (cumulation.remaining() >= bytes) {
+            return;
+        }
+        //至少按照2倍增长，长度字段还没有读完的大报文也只需要O(log n)次扩容和拷贝
+        int required = cumulation.position() + bytes;
+        grow(Math.max(required, (int) Math.min(Integer.MAX_VALUE, 2L * cumulation.capacity())));
+    }
+
+    private void grow(int capacity) {
+        ByteBuffer newCumulation = pool.acquire(capacity);
+        cumulation.flip();
+        newCumulation.put(cumulation);
+        pool.release(cumulation);
+        cumulation = newCumulation;
+    }
+
+    private void releaseCumulation() {
+        if (null != cumulation) {
+            pool.release(cumulation);
+            cumulation = null;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.seancheer.rawnio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 给报文加上长度字段并放入发送队列。
+ * 小报文和长度字段一起拷贝到一个pooled buffer中，大报文只单独申请长度字段，依靠gathering write和报文本身一起写出，避免拷贝。
+ */
+public class FrameEncoder {
+    private static final int COPY_THRESHOLD = 512;
+    private final LengthPrefix prefix;
+    private final BufferPool pool;
+
+    public FrameEncoder(LengthPrefix prefix) {
+        this(prefix, BufferPool.DEFAULT);
+    }
+
+    public FrameEncoder(LengthPrefix prefix, BufferPool pool) {
+        this.prefix = prefix;
+        this.pool = pool;
+    }
+
+    /**
+     * @param payload 处于读模式的报文，如果payload比较大，会被直接放入队列，调用方在发送完成前不能修改它
+     * @param out
+     */
+    public void encode(ByteBuffer payload, OutboundQueue out) {
+        int length = payload.remaining();
+        int headerLength = prefix.headerLength(length);
+        if (headerLength + length <= COPY_THRESHOLD) {
+            ByteBuffer buf = pool.acquire(headerLength + length);
+            prefix.writeHeader(buf, length);
+            buf.put(payload);
+            buf.flip();
+            out.enqueuePooled(buf);
+            return;
+        }
+
+        ByteBuffer header = pool.acquire(headerLength);
+        prefix.writeHeader(header, length);
+        header.flip();
+        out.enqueuePooled(header);
+        out.enqueue(payload);
+    }
+
+    /**
+     * 和encode一样，但是总是把payload拷贝出来，用于payload只在当前调用期间有效的情况，比如FrameDecoder回调出来的报文
+     *
+     * @param payload
+     * @param out
+     */
+    public void encodeCopy(ByteBuffer payload, OutboundQueue out) {
+        int length = payload.remaining();
+        ByteBuffer buf = pool.acquire(prefix.headerLength(length) + length);
+        prefix.writeHeader(buf, length);
+        buf.put(payload);
+        buf.flip();
+        out.enqueuePooled(buf);
+    }
+}
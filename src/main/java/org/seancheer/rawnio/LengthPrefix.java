@@ -0,0 +1,103 @@
+package org.seancheer.rawnio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 报文前面的长度字段格式
+ */
+public enum LengthPrefix {
+    /**
+     * 和protobuf一样的varint32，1~5个字节
+     */
+    VARINT32 {
+        @Override
+        public int headerLength(int length) {
+            if ((length & (~0 << 7)) == 0) {
+                return 1;
+            }
+            if ((length & (~0 << 14)) == 0) {
+                return 2;
+            }
+            if ((length & (~0 << 21)) == 0) {
+                return 3;
+            }
+            if ((length & (~0 << 28)) == 0) {
+                return 4;
+            }
+            return 5;
+        }
+
+        @Override
+        public void writeHeader(ByteBuffer out, int length) {
+            while ((length & ~0x7F) != 0) {
+                out.put((byte) ((length & 0x7F) | 0x80));
+                length >>>= 7;
+            }
+            out.put((byte) length);
+        }
+
+        @Override
+        public int readLength(ByteBuffer in) throws IOException {
+            int start = in.position();
+            int result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (!in.hasRemaining()) {
+                    in.position(start);
+                    return -1;
+                }
+                byte b = in.get();
+                result |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    if (result < 0) {
+                        throw new IOException("negative frame length: " + result);
+                    }
+                    return result;
+                }
+            }
+            throw new IOException("malformed varint32 frame length");
+        }
+    },
+
+    /**
+     * 固定4个字节的大端int
+     */
+    FIXED32 {
+        @Override
+        public int headerLength(int length) {
+            return 4;
+        }
+
+        @Override
+        public void writeHeader(ByteBuffer out, int length) {
+            out.putInt(length);
+        }
+
+        @Override
+        public int readLength(ByteBuffer in) throws IOException {
+            if (in.remaining() < 4) {
+                return -1;
+            }
+            int length = in.getInt();
+            if (length < 0) {
+                throw new IOException("negative frame length: " + length);
+            }
+            return length;
+        }
+    };
+
+    /**
+     * 长度为length的报文需要的长度字段字节数
+     */
+    public abstract int headerLength(int length);
+
+    public abstract void writeHeader(ByteBuffer out, int length);
+
+    /**
+     * 从in中读取长度字段
+     *
+     * @return 报文长度，如果in中的数据不足以解析出长度字段，返回-1并且不移动position
+     * @throws IOException 长度字段非法
+     */
+    public abstract int readLength(ByteBuffer in) throws IOException;
+}
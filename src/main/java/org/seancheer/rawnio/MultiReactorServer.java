@@ -0,0 +1,139 @@
+package org.seancheer.rawnio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * boss/worker多reactor模型的原生nio服务器：boss线程只负责accept，accept到的连接按照指定的策略分配给
+ * 固定数量的Reactor线程，线程数和连接数无关。
+ */
+public class MultiReactorServer {
+    private static final int BACKLOG = 1024;
+    private final String ip = "127.0.0.1";
+    private final int port = 12306;
+    private final Reactor[] reactors;
+    private final AssignPolicy policy;
+    private int next = 0;
+    private volatile boolean running = true;
+    private Selector selector;
+
+    /**
+     * 连接的分配策略
+     */
+    public enum AssignPolicy {
+        ROUND_ROBIN,
+        LEAST_LOADED
+    }
+
+    /**
+     * 用法：MultiReactorServer [reactor数量] [ROUND_ROBIN|LEAST_LOADED] [VARINT32|FIXED32]
+     * 指定了长度字段格式的时候，服务器按照长度字段拆包并echo每个报文
+     */
+    public static void main(String[] args) throws IOException {
+        int reactorCount = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        AssignPolicy policy = args.length > 1 ? AssignPolicy.valueOf(args[1]) : AssignPolicy.ROUND_ROBIN;
+        LengthPrefix prefix = args.length > 2 ? LengthPrefix.valueOf(args[2]) : null;
+        new MultiReactorServer(reactorCount, policy, prefix).startServer();
+    }
+
+    public MultiReactorServer(int reactorCount, AssignPolicy policy) throws IOException {
+        this(reactorCount, policy, null);
+    }
+
+    public MultiReactorServer(int reactorCount, AssignPolicy policy, LengthPrefix prefix) throws IOException {
+        if (reactorCount <= 0) {
+            throw new IllegalArgumentException("reactorCount must be positive: " + reactorCount);
+        }
+        this.policy = policy;
+        this.reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor(i, prefix);
+        }
+    }
+
+    public void startServer() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(ip, port), BACKLOG);
+        selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        for (Reactor reactor : reactors) {
+            reactor.start();
+        }
+        System.out.println(String.format("MultiReactorServer started with %d reactors, policy:%s", reactors.length, policy));
+
+        try {
+            while (running) {
+                selector.select();
+                Set<SelectionKey> keys = selector.selectedKeys();
+                Iterator<SelectionKey> iter = keys.iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        acceptAll(serverChannel);
+                    }
+                }
+            }
+        } finally {
+            for (Reactor reactor : reactors) {
+                reactor.shutdown();
+            }
+            serverChannel.close();
+            selector.close();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (null != selector) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 一次唤醒尽可能多的accept，连接风暴的时候可以减少select的次数
+     */
+    private void acceptAll(ServerSocketChannel serverChannel) {
+        for (;;) {
+            SocketChannel clientChannel;
+            try {
+                clientChannel = serverChannel.accept();
+                if (null == clientChannel) {
+                    return;
+                }
+                clientChannel.configureBlocking(false);
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                //accept失败通常是文件描述符耗尽，不能关闭server channel
+                e.printStackTrace();
+                return;
+            }
+            chooseReactor().register(clientChannel);
+        }
+    }
+
+    private Reactor chooseReactor() {
+        if (policy == AssignPolicy.LEAST_LOADED) {
+            Reactor least = reactors[0];
+            for (int i = 1; i < reactors.length; i++) {
+                if (reactors[i].connectionCount() < least.connectionCount()) {
+                    least = reactors[i];
+                }
+            }
+            return least;
+        }
+        Reactor reactor = reactors[next];
+        next = (next + 1) % reactors.length;
+        return reactor;
+    }
+}
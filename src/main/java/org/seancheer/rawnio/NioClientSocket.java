@@ -16,6 +16,8 @@ public class NioClientSocket {
     private final String ip = "127.0.0.1";
     private final int BUF_SIZE = 1024;
     private State state = State.WRITING;
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final BufferPool pool = BufferPool.DEFAULT;
 
 
     public static void main(String[] args) throws IOException, InterruptedException {
@@ -63,37 +65,38 @@ public class NioClientSocket {
                 //并返回，对于非阻塞模式，如果链接没有建立，返回false，否则返回true。
                 if (key.isConnectable() &&  clientChannel.finishConnect()){
                     //客户端首先进行主动写操作
+                    outbound.enqueue(ByteBuffer.wrap("hello server, from client.".getBytes(StandardCharsets.UTF_8)));
                     clientChannel.register(selector, SelectionKey.OP_WRITE);
                     continue;
                 }
 
                 if (key.isReadable() && state == State.READDING) {
-                    ByteBuffer buf = ByteBuffer.wrap(new byte[BUF_SIZE]);
-                    int readNum = clientChannel.read(buf);
-
-                    //如果读到的数据为-1，说明远端已经关闭了连接
-                    if(readNum < 0){
-                        state = State.FINISHED;
-                        break;
-                    }
+                    ByteBuffer buf = pool.acquire(BUF_SIZE);
+                    try {
+                        int readNum = clientChannel.read(buf);
+
+                        //如果读到的数据为-1，说明远端已经关闭了连接
+                        if (readNum < 0) {
+                            state = State.FINISHED;
+                            break;
+                        }
 
-                    //正确的从网络中读取数据的方式，直到读到没有数据可读为止
-                    while (readNum > 0) {
-                        readNum = clientChannel.read(buf);
+                        //正确的从网络中读取数据的方式，直到读到没有数据可读为止
+                        while (readNum > 0) {
+                            readNum = clientChannel.read(buf);
+                        }
+                        buf.flip();
+                        System.out.println("From server:" + StandardCharsets.UTF_8.decode(buf));
+                    } finally {
+                        pool.release(buf);
                     }
-                    System.out.println("From server:" + new String(buf.array(), StandardCharsets.UTF_8));
                     state = State.FINISHED;
                 }
 
                 if (key.isWritable() && state == State.WRITING) {
-                    ByteBuffer buf = ByteBuffer.wrap("hello server, from client.".getBytes(StandardCharsets.UTF_8));
-                    //一直写数据，直到写完为止，实际项目中可以全局保存写入的buffer，然后继续下一次select，如果可写了，会wakeup出来
-                    //不必像现在这样子sleep一会儿继续写
-                    while(buf.hasRemaining()){
-                        clientChannel.write(buf);
-                        if (buf.hasRemaining()){
-                            sleepSomeWhile(100);
-                        }
+                    //写不完的数据保存在队列中，继续下一次select，如果可写了，会wakeup出来继续写
+                    if (!outbound.flush(clientChannel)) {
+                        continue;
                     }
 
                     state = State.READDING;
@@ -105,13 +108,4 @@ public class NioClientSocket {
         selector.close();
         clientChannel.close();
     }
-
-
-    private void sleepSomeWhile(long mili){
-        try {
-            TimeUnit.MILLISECONDS.sleep(100);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-    }
 }
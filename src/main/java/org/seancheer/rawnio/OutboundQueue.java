@@ -0,0 +1,149 @@
+package org.seancheer.rawnio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * 每个连接的待发送队列，socket缓冲区满的时候不再sleep重试，而是把数据留在队列中，等待OP_WRITE就绪后
+ * 使用gathering write一次性写出多个buffer。
+ * 通过高低水位线来判断是否需要暂停读取，起到背压的作用，非线程安全，只能在所属的selector线程中使用。
+ * 通过enqueuePooled加入的buffer在写完或者clear的时候会自动归还给BufferPool。
+ */
+public class OutboundQueue {
+    public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+    public static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+    //一次gathering write最多携带的buffer数量，linux的IOV_MAX为1024，这里取一个较小的值即可
+    private static final int MAX_GATHER = 64;
+    //一次flush最多尝试的write次数，避免一个连接长时间占用selector线程
+    private static final int WRITE_SPIN_COUNT = 16;
+
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    //和queue一一对应，标记对应的buffer是否需要归还给pool
+    private final ArrayDeque<Boolean> pooled = new ArrayDeque<>();
+    private final BufferPool pool;
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final int highWaterMark;
+    private final int lowWaterMark;
+    private long pendingBytes;
+
+    public OutboundQueue() {
+        this(DEFAULT_HIGH_WATER_MARK, DEFAULT_LOW_WATER_MARK, BufferPool.DEFAULT);
+    }
+
+    public OutboundQueue(int highWaterMark, int lowWaterMark, BufferPool pool) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException(String.format("invalid water marks, high:%d low:%d",
+                    highWaterMark, lowWaterMark));
+        }
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = lowWaterMark;
+        this.pool = pool;
+    }
+
+    /**
+     * 加入一个待发送的buffer，buffer需要已经flip过，入队后调用方不能再修改它
+     *
+     * @param buf
+     */
+    public void enqueue(ByteBuffer buf) {
+        enqueue(buf, false);
+    }
+
+    /**
+     * 加入一个从BufferPool中申请的buffer，写完之后由队列负责release
+     *
+     * @param buf
+     */
+    public void enqueuePooled(ByteBuffer buf) {
+        enqueue(buf, true);
+    }
+
+    private void enqueue(ByteBuffer buf, boolean fromPool) {
+        if (!buf.hasRemaining()) {
+            if (fromPool) {
+                pool.release(buf);
+            }
+            return;
+        }
+        queue.addLast(buf);
+        pooled.addLast(fromPool);
+        pendingBytes += buf.remaining();
+    }
+
+    /**
+     * 尽可能多的写出队列中的数据
+     *
+     * @param channel
+     * @return true表示队列已经全部写完，false表示socket缓冲区已满，需要等待OP_WRITE
+     * @throws IOException
+     */
+    public boolean flush(GatheringByteChannel channel) throws IOException {
+        for (int spin = 0; spin < WRITE_SPIN_COUNT && !queue.isEmpty(); spin++) {
+            long written;
+            if (queue.size() == 1) {
+                written = channel.write(queue.peekFirst());
+            } else {
+                int count = 0;
+                Iterator<ByteBuffer> iter = queue.iterator();
+                while (iter.hasNext() && count < MAX_GATHER) {
+                    gather[count++] = iter.next();
+                }
+                written = channel.write(gather, 0, count);
+                //避免gather数组引用已经发送完的buffer
+                Arrays.fill(gather, 0, count, null);
+            }
+            pendingBytes -= written;
+            removeWritten();
+            if (written == 0) {
+                //socket缓冲区已满
+                break;
+            }
+        }
+        return queue.isEmpty();
+    }
+
+    private void removeWritten() {
+        while (!queue.isEmpty() && !queue.peekFirst().hasRemaining()) {
+            ByteBuffer buf = queue.pollFirst();
+            if (pooled.pollFirst()) {
+                pool.release(buf);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * 待发送的数据超过高水位线，调用方应该暂停读取
+     */
+    public boolean isAboveHighWaterMark() {
+        return pendingBytes > highWaterMark;
+    }
+
+    /**
+     * 待发送的数据已经低于低水位线，调用方可以恢复读取
+     */
+    public boolean isBelowLowWaterMark() {
+        return pendingBytes <= lowWaterMark;
+    }
+
+    public void clear() {
+        ByteBuffer buf;
+        while ((buf = queue.pollFirst()) != null) {
+            if (pooled.pollFirst()) {
+                pool.release(buf);
+            }
+        }
+        pendingBytes = 0;
+    }
+}
@@ -0,0 +1,144 @@
+package org.seancheer.rawnio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个selector线程，负责处理分配给它的所有连接的读写事件，多个连接共享同一个线程和selector，
+ * 不再像ReadWriteRunnable那样每个连接一个线程一个selector。
+ */
+public class Reactor implements Runnable {
+    private static final String THREAD_PREFIX = "Reactor_";
+    private final int id;
+    private final Selector selector;
+    private final LengthPrefix prefix;
+    //boss线程accept到的连接先放入该队列，由reactor自己的线程进行register，
+    //因为在其他线程中调用register会和正在阻塞的select()竞争同一把锁
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakenUp = new AtomicBoolean(false);
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile boolean running = true;
+    private long nextConnectionId = 0;
+    private Thread thread;
+
+    /**
+     * @param prefix 连接使用的长度字段格式，为null表示不进行拆包
+     */
+    public Reactor(int id, LengthPrefix prefix) throws IOException {
+        this.id = id;
+        this.prefix = prefix;
+        this.selector = Selector.open();
+    }
+
+    public void start() {
+        thread = new Thread(this, THREAD_PREFIX + id);
+        thread.start();
+    }
+
+    /**
+     * 将一个新的连接交给该reactor，可以在任意线程中调用
+     *
+     * @param channel
+     */
+    public void register(SocketChannel channel) {
+        connectionCount.incrementAndGet();
+        pendingChannels.offer(channel);
+        //多次register只需要wakeup一次，wakeup本身是一次系统调用
+        if (wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 当前reactor负责的连接数，用于least-loaded分配
+     */
+    public int connectionCount() {
+        return connectionCount.get();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
+                }
+                wakenUp.set(false);
+                registerPendingChannels();
+
+                Set<SelectionKey> keys = selector.selectedKeys();
+                Iterator<SelectionKey> iter = keys.iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (!key.isValid()) {
+                        connection.close();
+                        continue;
+                    }
+                    connection.handle(key);
+                }
+            }
+            closeAll();
+        } finally {
+            //该线程马上就要退出了，把本地缓存的buffer(包括closeAll中连接归还的)还给全局队列
+            BufferPool.DEFAULT.trimCurrentThreadCache();
+        }
+    }
+
+    /**
+     * 由Connection在关闭的时候回调
+     */
+    void connectionClosed(Connection connection) {
+        connectionCount.decrementAndGet();
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            Connection connection = new Connection(nextConnectionId++, channel, this, prefix);
+            try {
+                //一般来讲，通道准备好后立马就可以进行写操作，但是我们需要先读取到数据，在进行写，所以只先注册read
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.attach(key);
+            } catch (ClosedChannelException e) {
+                connection.close();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                ((Connection) attachment).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
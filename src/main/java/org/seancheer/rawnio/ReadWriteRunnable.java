@@ -9,7 +9,6 @@ import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
 
 /**
  * accept
@@ -17,12 +16,15 @@ import java.util.concurrent.TimeUnit;
 public class ReadWriteRunnable implements Runnable {
     private static final String THREAD_PREFIX = "Client_";
     private static final int BUF_SIZE = 1024;
+    private static final ByteBuffer RESPONSE = Connection.directBuffer("this is server's message".getBytes(StandardCharsets.UTF_8));
+    private final BufferPool pool = BufferPool.DEFAULT;
     private final Selector selector;
     private final ServerSocketChannel serverSocketChannel;
     private final SocketChannel clientChannel;
     private final int id;
+    //只在读取的时候从pool中申请，读完即归还
     private ByteBuffer readBuf;
-    private ByteBuffer writeBuf;
+    private final OutboundQueue outbound = new OutboundQueue();
     private boolean running = true;
     private boolean closed = false;
     private State state = State.READDING;
@@ -34,8 +36,6 @@ public class ReadWriteRunnable implements Runnable {
         this.clientChannel = clientChannel;
         //一般来讲，通道准备好后立马就可以进行写操作，但是我们需要先读取到数据，在进行写，所以只先注册read
         clientChannel.register(selector, SelectionKey.OP_READ);
-        readBuf = ByteBuffer.wrap(new byte[BUF_SIZE]);
-        writeBuf = ByteBuffer.wrap(new byte[BUF_SIZE]);
     }
 
     /**
@@ -70,37 +70,37 @@ public class ReadWriteRunnable implements Runnable {
                     if (key.isReadable() && state == State.READDING) {
                         //当网络出现阻塞的时候，可能一次性无法读到所有的数据，严格来讲，这里需要判断读到的数据，如果读到的数据
                         //出现预期的end标志，才进行结束，这里简单进行，发现为0，直接退出
-                        readBuf.clear();
-                        int readNum = clientChannel.read(readBuf);
+                        readBuf = pool.acquire(BUF_SIZE);
+                        try {
+                            int readNum = clientChannel.read(readBuf);
+
+                            //如果读到的数据为-1，说明远端已经关闭了连接
+                            if (readNum < 0) {
+                                state = State.FINISHED;
+                                break;
+                            }
+                            //正确的从网络中读取数据的方式，直到读到没有数据可读为止
+                            while (readNum > 0) {
+                                readNum = clientChannel.read(readBuf);
+                            }
 
-                        //如果读到的数据为-1，说明远端已经关闭了连接
-                        if(readNum < 0){
-                            state = State.FINISHED;
-                            break;
-                        }
-                        //正确的从网络中读取数据的方式，直到读到没有数据可读为止
-                        while (readNum > 0) {
-                            readNum = clientChannel.read(readBuf);
+                            //direct buffer没有backing array，需要flip之后再decode
+                            readBuf.flip();
+                            System.out.println("From client:" + StandardCharsets.UTF_8.decode(readBuf));
+                        } finally {
+                            pool.release(readBuf);
+                            readBuf = null;
                         }
-
-                        System.out.println("From client:" + new String(readBuf.array(), StandardCharsets.UTF_8));
+                        outbound.enqueue(RESPONSE.duplicate());
                         clientChannel.register(selector, SelectionKey.OP_WRITE);
                         state = State.WRITING;
                     }
 
                     if (key.isWritable() && state == State.WRITING){
-                        writeBuf.clear();
-                        writeBuf.put("this is server's message".getBytes(StandardCharsets.UTF_8));
-                        //当put或者read完毕后，需要进行flip操作，才可以进行write操作，否则是无法写入数据的
-                        writeBuf.flip();
-
-                        while(writeBuf.hasRemaining()){
-                            clientChannel.write(writeBuf);
-                            if (writeBuf.hasRemaining()){
-                                sleepSomeWhile(100);
-                            }
+                        //写不完的时候不再sleep，数据留在队列中，等待下一次OP_WRITE就绪后继续写
+                        if (outbound.flush(clientChannel)) {
+                            state = State.FINISHED;
                         }
-                        state = State.FINISHED;
                     }
                 }catch(IOException e){
                     e.printStackTrace();
@@ -134,19 +134,13 @@ public class ReadWriteRunnable implements Runnable {
 //            }
             running = false;
             closed = true;
+            outbound.clear();
+            //该线程马上就要退出了，把本地缓存的buffer还给全局队列
+            pool.trimCurrentThreadCache();
 
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
         }
     }
-
-
-    private void sleepSomeWhile(long mili){
-        try {
-            TimeUnit.MILLISECONDS.sleep(100);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-    }
 }
@@ -0,0 +1,224 @@
+package org.seancheer.trace;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import org.seancheer.loadgen.LatencyHistogram;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * pipeline的追踪工具，记录每个handler方法从进入到退出的耗时(包括它同步调用的后续handler)。
+ * 每个线程(即每个EventLoop)有自己的环形缓冲区，只有所属线程写入，记录时不加锁也不产生对象；
+ * 默认关闭，关闭时每次调用只有一次volatile读。
+ * 可以通过-Dnetty_test.trace=true在启动时开启，或者运行时通过setEnabled/JMX(org.seancheer:type=PipelineTracer)开关和dump。
+ *
+ * @author: seancheer
+ * @date: 2020/3/22
+ **/
+public final class PipelineTracer {
+    private static final int RING_SIZE = 4096;
+    //每条记录是一个long，高24位是probe的id，低40位是耗时(纳秒，最大约18分钟)
+    private static final int DURATION_BITS = 40;
+    private static final long DURATION_MASK = (1L << DURATION_BITS) - 1;
+
+    private static volatile boolean enabled = Boolean.getBoolean("netty_test.trace");
+    private static final Map<String, Probe> PROBES = new ConcurrentHashMap<>();
+    private static final List<Probe> PROBES_BY_ID = new CopyOnWriteArrayList<>();
+    private static final List<Ring> RINGS = new CopyOnWriteArrayList<>();
+    private static final FastThreadLocal<Ring> LOCAL_RING = new FastThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring ring = new Ring(Thread.currentThread().getName());
+            RINGS.add(ring);
+            return ring;
+        }
+    };
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Control(),
+                    new ObjectName("org.seancheer:type=PipelineTracer"));
+        } catch (Exception e) {
+            //没有JMX的时候仍然可以通过静态方法使用
+            e.printStackTrace();
+        }
+    }
+
+    private PipelineTracer() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * 获取一个名字对应的probe，同名的probe是同一个，一般保存在handler的静态字段中
+     */
+    public static Probe probe(String name) {
+        return PROBES.computeIfAbsent(name, n -> {
+            synchronized (PROBES_BY_ID) {
+                Probe probe = new Probe(n, PROBES_BY_ID.size());
+                PROBES_BY_ID.add(probe);
+                return probe;
+            }
+        });
+    }
+
+    /**
+     * 汇总所有线程最近的记录，按handler输出次数和耗时分布(微秒)
+     */
+    public static String dump() {
+        LatencyHistogram[] histograms = new LatencyHistogram[PROBES_BY_ID.size()];
+        for (Ring ring : RINGS) {
+            ring.collect(histograms);
+        }
+        StringBuilder sb = new StringBuilder(String.format("%-40s %10s %10s %10s %10s %10s%n",
+                "probe", "count", "mean(us)", "p50(us)", "p99(us)", "max(us)"));
+        for (int i = 0; i < histograms.length; i++) {
+            LatencyHistogram h = histograms[i];
+            if (null == h) {
+                continue;
+            }
+            sb.append(String.format("%-40s %10d %10.2f %10.2f %10.2f %10.2f%n", PROBES_BY_ID.get(i).name, h.count(),
+                    h.mean() / 1000, h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.max() / 1000.0));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 清空所有线程的记录
+     */
+    public static void reset() {
+        for (Ring ring : RINGS) {
+            ring.reset();
+        }
+    }
+
+    /**
+     * 一个追踪点，比如某个handler的write方法
+     */
+    public static final class Probe {
+        private final String name;
+        private final long id;
+
+        private Probe(String name, int id) {
+            this.name = name;
+            this.id = (long) id << DURATION_BITS;
+        }
+
+        /**
+         * 进入追踪点
+         *
+         * @return 开始的时间戳，未开启追踪时返回0
+         */
+        public long enter() {
+            return enabled ? System.nanoTime() : 0;
+        }
+
+        /**
+         * 退出追踪点
+         *
+         * @param start enter的返回值
+         */
+        public void exit(long start) {
+            if (start != 0) {
+                long duration = Math.min(System.nanoTime() - start, DURATION_MASK);
+                LOCAL_RING.get().add(id | duration);
+            }
+        }
+    }
+
+    /**
+     * 单写多读的环形缓冲区，写入使用lazySet，dump的时候可能会读到正在被覆盖的旧数据，对于统计来说可以接受
+     */
+    private static final class Ring {
+        private final String threadName;
+        private final AtomicLongArray entries = new AtomicLongArray(RING_SIZE);
+        private final AtomicLong written = new AtomicLong();
+        //reset之后只统计该位置之后的记录，reset不修改written，避免和写线程竞争
+        private volatile long resetMark;
+
+        Ring(String threadName) {
+            this.threadName = threadName;
+        }
+
+        void add(long entry) {
+            long index = written.get();
+            entries.lazySet((int) (index & (RING_SIZE - 1)), entry);
+            written.lazySet(index + 1);
+        }
+
+        void collect(LatencyHistogram[] histograms) {
+            long end = written.get();
+            long start = Math.max(resetMark, end - RING_SIZE);
+            for (long i = start; i < end; i++) {
+                long entry = entries.get((int) (i & (RING_SIZE - 1)));
+                int probeId = (int) (entry >>> DURATION_BITS);
+                if (probeId >= histograms.length) {
+                    continue;
+                }
+                if (null == histograms[probeId]) {
+                    histograms[probeId] = new LatencyHistogram();
+                }
+                histograms[probeId].record(entry & DURATION_MASK);
+            }
+        }
+
+        /**
+         * 由dump线程调用，只是把读取的起点推到当前位置
+         */
+        void reset() {
+            resetMark = written.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Ring[" + threadName + "]";
+        }
+    }
+
+    /**
+     * JMX的管理接口
+     */
+    public interface ControlMXBean {
+        boolean isEnabled();
+
+        void setEnabled(boolean enabled);
+
+        String dump();
+
+        void reset();
+    }
+
+    private static final class Control implements ControlMXBean {
+        @Override
+        public boolean isEnabled() {
+            return PipelineTracer.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean on) {
+            PipelineTracer.setEnabled(on);
+        }
+
+        @Override
+        public String dump() {
+            return PipelineTracer.dump();
+        }
+
+        @Override
+        public void reset() {
+            PipelineTracer.reset();
+        }
+    }
+}
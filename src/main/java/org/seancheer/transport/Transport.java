@@ -0,0 +1,220 @@
+package org.seancheer.transport;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.kqueue.KQueue;
+import io.netty.channel.kqueue.KQueueEventLoopGroup;
+import io.netty.channel.kqueue.KQueueServerSocketChannel;
+import io.netty.channel.kqueue.KQueueSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 可插拔的传输层，linux上优先使用epoll，mac上使用kqueue，否则退回到nio。
+ * 当前使用的netty版本(4.1.43)还没有io_uring的传输层，所以这里不提供。
+ *
+ * @author: seancheer
+ * @date: 2020/3/10
+ **/
+public enum Transport {
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int nThreads) {
+            return new EpollEventLoopGroup(nThreads);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public void applyServerOptions(ServerBootstrap bootstrap, TransportOptions options) {
+            //epoll默认就是边缘触发，这里显式设置，方便通过配置切换成水平触发做对比
+            EpollMode mode = options.isEdgeTriggered() ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, mode);
+            bootstrap.childOption(EpollChannelOption.EPOLL_MODE, mode);
+            if (options.isReusePort()) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            if (options.getTcpFastOpen() > 0) {
+                bootstrap.option(EpollChannelOption.TCP_FASTOPEN, options.getTcpFastOpen());
+            }
+        }
+
+        @Override
+        public void applyClientOptions(Bootstrap bootstrap, TransportOptions options) {
+            bootstrap.option(EpollChannelOption.EPOLL_MODE,
+                    options.isEdgeTriggered() ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED);
+            if (options.getTcpFastOpen() > 0) {
+                bootstrap.option(EpollChannelOption.TCP_FASTOPEN_CONNECT, true);
+            }
+        }
+
+        @Override
+        public boolean supportsReusePort() {
+            return true;
+        }
+    },
+
+    KQUEUE {
+        @Override
+        public boolean isAvailable() {
+            return KQueue.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int nThreads) {
+            return new KQueueEventLoopGroup(nThreads);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannelClass() {
+            return KQueueServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return KQueueSocketChannel.class;
+        }
+    },
+
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int nThreads) {
+            return new NioEventLoopGroup(nThreads);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return NioSocketChannel.class;
+        }
+    };
+
+    /**
+     * 通过该系统属性可以强制指定传输层，比如-Dnetty_test.transport=nio
+     */
+    public static final String TRANSPORT_PROPERTY = "netty_test.transport";
+
+    public abstract boolean isAvailable();
+
+    /**
+     * @param nThreads 线程数，0表示使用netty的默认值(cpu核数 * 2)
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int nThreads);
+
+    public abstract Class<? extends ServerSocketChannel> serverChannelClass();
+
+    public abstract Class<? extends SocketChannel> socketChannelClass();
+
+    /**
+     * 设置服务端相关的传输层参数，不支持的参数直接忽略
+     */
+    public void applyServerOptions(ServerBootstrap bootstrap, TransportOptions options) {
+    }
+
+    /**
+     * 设置客户端相关的传输层参数，不支持的参数直接忽略
+     */
+    public void applyClientOptions(Bootstrap bootstrap, TransportOptions options) {
+    }
+
+    public boolean supportsReusePort() {
+        return false;
+    }
+
+    /**
+     * 选择当前平台最合适的传输层
+     *
+     * @return
+     */
+    public static Transport select() {
+        String forced = System.getProperty(TRANSPORT_PROPERTY);
+        if (null != forced && !forced.isEmpty()) {
+            Transport transport = Transport.valueOf(forced.toUpperCase(Locale.ROOT));
+            if (!transport.isAvailable()) {
+                throw new IllegalStateException("transport " + transport + " is not available on this platform");
+            }
+            return transport;
+        }
+
+        for (Transport transport : values()) {
+            if (transport.isAvailable()) {
+                return transport;
+            }
+        }
+        return NIO;
+    }
+
+    /**
+     * 创建一个使用当前传输层的ServerBootstrap，group/channel/option均已设置好
+     */
+    public ServerBootstrap newServerBootstrap(EventLoopGroup group, TransportOptions options) {
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(group).channel(serverChannelClass());
+        applyServerOptions(bootstrap, options);
+        return bootstrap;
+    }
+
+    /**
+     * 创建一个使用当前传输层的Bootstrap，group/channel/option均已设置好
+     */
+    public Bootstrap newBootstrap(EventLoopGroup group, TransportOptions options) {
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group).channel(socketChannelClass());
+        applyClientOptions(bootstrap, options);
+        return bootstrap;
+    }
+
+    /**
+     * 绑定端口，如果开启了SO_REUSEPORT，那么会在同一个端口上绑定多个acceptor，由内核在它们之间做负载均衡，
+     * 每个acceptor会被注册到group中不同的EventLoop上。
+     *
+     * @return 所有绑定成功的server channel
+     */
+    public List<Channel> bind(ServerBootstrap bootstrap, SocketAddress address, TransportOptions options)
+            throws InterruptedException {
+        int acceptors = options.isReusePort() && supportsReusePort() ? options.getAcceptors() : 1;
+        List<Channel> channels = new ArrayList<>(acceptors);
+        for (int i = 0; i < acceptors; i++) {
+            channels.add(bootstrap.bind(address).sync().channel());
+        }
+        return channels;
+    }
+}
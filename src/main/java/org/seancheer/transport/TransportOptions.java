@@ -0,0 +1,74 @@
+package org.seancheer.transport;
+
+/**
+ * 传输层相关的可选参数，均可以通过系统属性进行配置
+ *
+ * @author: seancheer
+ * @date: 2020/3/10
+ **/
+public class TransportOptions {
+    private boolean edgeTriggered = true;
+    private boolean reusePort = false;
+    private int acceptors = Runtime.getRuntime().availableProcessors();
+    private int tcpFastOpen = 0;
+
+    /**
+     * 从系统属性中读取配置：
+     * -Dnetty_test.edgeTriggered=true|false
+     * -Dnetty_test.reusePort=true|false
+     * -Dnetty_test.acceptors=N
+     * -Dnetty_test.tcpFastOpen=N (服务端为TFO队列长度，客户端大于0即开启)
+     *
+     * @return
+     */
+    public static TransportOptions fromSystemProperties() {
+        TransportOptions options = new TransportOptions();
+        options.edgeTriggered = Boolean.parseBoolean(System.getProperty("netty_test.edgeTriggered", "true"));
+        options.reusePort = Boolean.getBoolean("netty_test.reusePort");
+        options.acceptors = Integer.getInteger("netty_test.acceptors", options.acceptors);
+        options.tcpFastOpen = Integer.getInteger("netty_test.tcpFastOpen", 0);
+        return options;
+    }
+
+    public boolean isEdgeTriggered() {
+        return edgeTriggered;
+    }
+
+    public TransportOptions setEdgeTriggered(boolean edgeTriggered) {
+        this.edgeTriggered = edgeTriggered;
+        return this;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public TransportOptions setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public TransportOptions setAcceptors(int acceptors) {
+        if (acceptors <= 0) {
+            throw new IllegalArgumentException("acceptors must be positive: " + acceptors);
+        }
+        this.acceptors = acceptors;
+        return this;
+    }
+
+    public int getTcpFastOpen() {
+        return tcpFastOpen;
+    }
+
+    public TransportOptions setTcpFastOpen(int tcpFastOpen) {
+        if (tcpFastOpen < 0) {
+            throw new IllegalArgumentException("tcpFastOpen must not be negative: " + tcpFastOpen);
+        }
+        this.tcpFastOpen = tcpFastOpen;
+        return this;
+    }
+}
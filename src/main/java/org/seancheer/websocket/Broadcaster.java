@@ -0,0 +1,403 @@
+package org.seancheer.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.internal.PlatformDependent;
+import org.seancheer.websocket.SlowConsumerGuard.OverflowPolicy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按照EventLoop对订阅者进行分组的广播器，用来替代ChannelGroup.writeAndFlush。
+ * ChannelGroup会在发送者的线程里面对每个channel调用一次writeAndFlush，每个不在当前EventLoop的channel都会触发一次跨线程的唤醒，
+ * 这里每条消息只编码一次成为共享的ByteBuf，每个EventLoop只提交一个任务，由该EventLoop给本地的channel写retainedDuplicate，
+ * 同一个tick内的多条消息合并处理，每个channel只flush一次。
+ * 订阅者集合只会在所属的EventLoop中修改和遍历，所以不需要加锁。
+ * 不可写的channel由SlowConsumerGuard按照OverflowPolicy处理，不会无限的堆积frame。
+ * 有订阅者协商了permessage-deflate的时候，消息同时压缩一次，这些订阅者共享压缩之后的frame。
+ * 指定了RoomHistory的时候，广播的消息同时保存到history中，新的订阅者先收到历史消息，并且不会重复收到历史中已经包含的消息。
+ *
+ * @author: seancheer
+ * @date: 2020/3/24
+ **/
+public class Broadcaster {
+    //channel不可写之后每个channel最多暂存的frame数量
+    static final int DEFAULT_MAX_BACKLOG = Integer.getInteger("netty_test.chat.maxBacklog", 64);
+    //没有历史消息的时候订阅者的起始序号，所有的消息都需要发送
+    private static final long NO_REPLAY = -1;
+    private final ByteBufAllocator alloc;
+    private final OverflowPolicy policy;
+    private final int maxBacklog;
+    //为null的时候不保存历史消息
+    private final RoomHistory history;
+    private final ConcurrentMap<EventLoop, LoopSubscribers> loops = new ConcurrentHashMap<>();
+    //协商了permessage-deflate的订阅者数量
+    private final AtomicInteger deflateSubscribers = new AtomicInteger();
+
+    public Broadcaster() {
+        this(OverflowPolicy.DROP_OLDEST, DEFAULT_MAX_BACKLOG);
+    }
+
+    public Broadcaster(OverflowPolicy policy, int maxBacklog) {
+        this(policy, maxBacklog, null);
+    }
+
+    public Broadcaster(OverflowPolicy policy, int maxBacklog, RoomHistory history) {
+        this(ByteBufAllocator.DEFAULT, policy, maxBacklog, history);
+    }
+
+    public Broadcaster(ByteBufAllocator alloc, OverflowPolicy policy, int maxBacklog, RoomHistory history) {
+        this.alloc = alloc;
+        this.policy = policy;
+        this.maxBacklog = maxBacklog;
+        this.history = history;
+    }
+
+    public OverflowPolicy policy() {
+        return policy;
+    }
+
+    public RoomHistory history() {
+        return history;
+    }
+
+    /**
+     * 添加订阅者，channel关闭或者不再订阅的时候需要调用remove，有历史消息的时候会先发送历史消息
+     *
+     * @param channel
+     */
+    public void add(Channel channel) {
+        LoopSubscribers subscribers = loops.computeIfAbsent(channel.eventLoop(), loop -> new LoopSubscribers(loop, policy, maxBacklog));
+        subscribers.execute(() -> {
+            //channel有可能在任务执行之前就已经关闭了
+            if (!channel.isActive() || subscribers.channels.containsKey(channel)) {
+                return;
+            }
+            //待发送队列中序号不大于startSeq的消息已经包含在历史消息中了，不会再发送给该channel
+            long startSeq = NO_REPLAY;
+            if (null != history) {
+                startSeq = sendPage(channel, history.since(0, Integer.MAX_VALUE), false);
+            }
+            subscribers.channels.put(channel, startSeq);
+            if (PerMessageDeflate.isNegotiated(channel)) {
+                deflateSubscribers.incrementAndGet();
+            }
+        });
+    }
+
+    public void remove(Channel channel) {
+        LoopSubscribers subscribers = loops.get(channel.eventLoop());
+        if (null != subscribers) {
+            //close有可能在run遍历channels的过程中同步触发，所以移除总是放到下一个任务中执行
+            subscribers.loop.execute(() -> {
+                if (null != subscribers.channels.remove(channel) && PerMessageDeflate.isNegotiated(channel)) {
+                    deflateSubscribers.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    /**
+     * 在channel所属的EventLoop中发送序号大于since的历史消息，最多limit条，
+     * 最后发送一个"/seq {本页最后一条消息的序号} {最新的序号}"的文本frame，客户端据此请求下一页
+     *
+     * @param channel
+     * @param since
+     * @param limit
+     */
+    public void sendHistory(Channel channel, long since, int limit) {
+        if (null == history) {
+            return;
+        }
+        channel.eventLoop().execute(() -> {
+            if (channel.isActive()) {
+                sendPage(channel, history.since(since, limit), true);
+            }
+        });
+    }
+
+    /**
+     * 历史消息和广播一样交给SlowConsumerGuard，只能在channel所属的EventLoop中调用
+     *
+     * @param channel
+     * @param page
+     * @param withSeq
+     * @return 最新的序号
+     */
+    private long sendPage(Channel channel, RoomHistory.Page page, boolean withSeq) {
+        boolean written = false;
+        for (ByteBuf frame : page.frames()) {
+            written |= SlowConsumerGuard.offer(channel, frame, policy, maxBacklog);
+        }
+        if (withSeq) {
+            ByteBuf seq = encode(new TextWebSocketFrame("/seq " + page.lastSeq() + " " + page.latestSeq()), alloc);
+            written |= SlowConsumerGuard.offer(channel, seq, policy, maxBacklog);
+        }
+        if (written) {
+            channel.flush();
+        }
+        return page.latestSeq();
+    }
+
+    /**
+     * room销毁的时候调用，释放历史消息
+     */
+    public void close() {
+        if (null != history) {
+            history.close();
+        }
+    }
+
+    /**
+     * 广播一个frame，会获取frame的所有权并在编码之后释放
+     *
+     * @param frame
+     */
+    public void broadcast(WebSocketFrame frame) {
+        ByteBuf encoded;
+        ByteBuf deflated;
+        try {
+            encoded = encode(frame, alloc);
+            try {
+                //没有订阅者协商permessage-deflate的时候不需要压缩
+                deflated = deflateSubscribers.get() > 0 ? encodeDeflated(frame) : null;
+            } catch (RuntimeException e) {
+                encoded.release();
+                throw e;
+            }
+        } finally {
+            frame.release();
+        }
+        broadcastEncoded(encoded, deflated);
+    }
+
+    private ByteBuf encodeDeflated(WebSocketFrame frame) {
+        WebSocketFrame compressed = PerMessageDeflate.compress(frame, alloc);
+        if (null == compressed) {
+            return null;
+        }
+        try {
+            return encode(compressed, alloc);
+        } finally {
+            compressed.release();
+        }
+    }
+
+    /**
+     * 广播已经编码好的websocket frame，会获取encoded的所有权
+     *
+     * @param encoded
+     */
+    public void broadcastEncoded(ByteBuf encoded) {
+        broadcastEncoded(encoded, null);
+    }
+
+    /**
+     * 广播已经编码好的websocket frame，协商了permessage-deflate的channel发送deflated，其他的channel发送encoded，
+     * 会获取两者的所有权
+     *
+     * @param encoded
+     * @param deflated 压缩过的frame，可以为null
+     */
+    public void broadcastEncoded(ByteBuf encoded, ByteBuf deflated) {
+        try {
+            if (null == history) {
+                enqueue(0, encoded, deflated);
+            } else {
+                //分配序号和入队在同一个锁中，每个EventLoop的待发送队列都是按照序号排列的
+                synchronized (history) {
+                    enqueue(history.append(encoded), encoded, deflated);
+                }
+            }
+        } finally {
+            encoded.release();
+            if (null != deflated) {
+                deflated.release();
+            }
+        }
+    }
+
+    private void enqueue(long seq, ByteBuf encoded, ByteBuf deflated) {
+        for (LoopSubscribers subscribers : loops.values()) {
+            subscribers.enqueue(new Message(seq, encoded.retain(), null == deflated ? null : deflated.retain()));
+        }
+    }
+
+    /**
+     * 当前的订阅者数量，只用于统计，结果并不精确
+     *
+     * @return
+     */
+    public int size() {
+        int size = 0;
+        for (LoopSubscribers subscribers : loops.values()) {
+            size += subscribers.channels.size();
+        }
+        return size;
+    }
+
+    /**
+     * 按照RFC 6455编码服务端发出的frame(不需要mask)，这样每条广播的消息只需要编码一次，
+     * 写出的ByteBuf不是WebSocketFrame，会直接跳过pipeline中的WebSocket08FrameEncoder
+     *
+     * @param frame
+     * @param alloc
+     * @return
+     */
+    static ByteBuf encode(WebSocketFrame frame, ByteBufAllocator alloc) {
+        ByteBuf content = frame.content();
+        int length = content.readableBytes();
+        int b0 = (frame.isFinalFragment() ? 0x80 : 0) | (frame.rsv() << 4) | opcode(frame);
+        int headerLength = length <= 125 ? 2 : length <= 0xFFFF ? 4 : 10;
+
+        ByteBuf buf = alloc.directBuffer(headerLength + length);
+        buf.writeByte(b0);
+        if (length <= 125) {
+            buf.writeByte(length);
+        } else if (length <= 0xFFFF) {
+            buf.writeByte(126);
+            buf.writeShort(length);
+        } else {
+            buf.writeByte(127);
+            buf.writeLong(length);
+        }
+        buf.writeBytes(content, content.readerIndex(), length);
+        return buf;
+    }
+
+    private static int opcode(WebSocketFrame frame) {
+        if (frame instanceof TextWebSocketFrame) {
+            return 0x1;
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            return 0x2;
+        } else if (frame instanceof ContinuationWebSocketFrame) {
+            return 0x0;
+        } else if (frame instanceof CloseWebSocketFrame) {
+            return 0x8;
+        } else if (frame instanceof PingWebSocketFrame) {
+            return 0x9;
+        } else if (frame instanceof PongWebSocketFrame) {
+            return 0xA;
+        }
+        throw new IllegalArgumentException("unsupported frame type: " + frame.getClass().getSimpleName());
+    }
+
+    /**
+     * 同一个EventLoop上的所有订阅者，pending是多生产者单消费者的队列，只有在没有调度过的时候才会提交任务，
+     * 所以同一个tick内到达的多条消息只会产生一次唤醒
+     */
+    private static final class LoopSubscribers implements Runnable {
+        private final EventLoop loop;
+        private final OverflowPolicy policy;
+        private final int maxBacklog;
+        //只在loop线程中访问，value是channel加入时已经通过历史消息发送过的最新序号
+        private final Map<Channel, Long> channels = new LinkedHashMap<>();
+        private final Queue<Message> pending = PlatformDependent.newMpscQueue();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        LoopSubscribers(EventLoop loop, OverflowPolicy policy, int maxBacklog) {
+            this.loop = loop;
+            this.policy = policy;
+            this.maxBacklog = maxBacklog;
+        }
+
+        void execute(Runnable task) {
+            if (loop.inEventLoop()) {
+                task.run();
+            } else {
+                loop.execute(task);
+            }
+        }
+
+        void enqueue(Message message) {
+            pending.offer(message);
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    loop.execute(this);
+                } catch (RejectedExecutionException e) {
+                    //EventLoop已经关闭了，上面的channel也都关闭了，直接丢弃
+                    releasePending();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            //先清除标记再消费，之后到达的消息会重新调度，不会遗漏
+            scheduled.set(false);
+            boolean written = false;
+            Message message;
+            while (null != (message = pending.poll())) {
+                try {
+                    for (Map.Entry<Channel, Long> entry : channels.entrySet()) {
+                        Channel channel = entry.getKey();
+                        if (!channel.isActive() || message.seq <= entry.getValue()) {
+                            continue;
+                        }
+                        written |= SlowConsumerGuard.offer(channel, message.frameFor(channel).retainedDuplicate(), policy, maxBacklog);
+                    }
+                } finally {
+                    message.release();
+                }
+            }
+
+            if (written) {
+                for (Channel channel : channels.keySet()) {
+                    if (channel.isActive()) {
+                        channel.flush();
+                    }
+                }
+            }
+        }
+
+        private void releasePending() {
+            Message message;
+            while (null != (message = pending.poll())) {
+                message.release();
+            }
+        }
+    }
+
+    /**
+     * 一条广播消息，deflated为null的时候所有的channel都发送encoded
+     */
+    private static final class Message {
+        //没有历史消息的时候为0
+        private final long seq;
+        private final ByteBuf encoded;
+        private final ByteBuf deflated;
+
+        Message(long seq, ByteBuf encoded, ByteBuf deflated) {
+            this.seq = seq;
+            this.encoded = encoded;
+            this.deflated = deflated;
+        }
+
+        ByteBuf frameFor(Channel channel) {
+            return null != deflated && PerMessageDeflate.isNegotiated(channel) ? deflated : encoded;
+        }
+
+        void release() {
+            encoded.release();
+            if (null != deflated) {
+                deflated.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.seancheer.websocket;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 聊天室(topic)到订阅者的索引，每个room有自己的Broadcaster，发布消息的时候只会遍历该room的成员，
+ * 广播的开销从全部的连接数变为room的大小。
+ * room的创建和销毁都在ConcurrentHashMap对应key的compute中完成，加入和最后一个成员离开不会出现竞争。
+ * 每个room保存最近的消息(RoomHistory)，加入的时候先收到历史消息。最后一个成员离开之后room和历史消息继续保留idleTtl，
+ * 网络抖动导致所有成员同时断开的时候，重连的客户端仍然可以收到历史消息；空闲超时的room由sweep销毁并释放历史消息。
+ * room的名字由客户端决定，为了防止一个客户端不断的换room把大量的历史消息留在空闲的room中，所有room的历史消息总共超过maxHistoryBytes的时候，
+ * 最早空闲的room会被提前销毁，有成员的room不受影响。
+ *
+ * @author: seancheer
+ * @date: 2020/3/26
+ **/
+public class ChatRooms {
+    public static final String DEFAULT_ROOM = "lobby";
+    //没有成员的room保留的时间，默认和历史消息的保留时间相同，不保存历史消息的时候最后一个成员离开就销毁
+    public static final long DEFAULT_IDLE_TTL_MILLIS = RoomHistory.DEFAULT_MAX_FRAMES > 0
+            ? TimeUnit.SECONDS.toMillis(Long.getLong("netty_test.chat.roomIdleSeconds",
+            TimeUnit.MILLISECONDS.toSeconds(RoomHistory.DEFAULT_MAX_AGE_MILLIS))) : 0;
+    //所有room的历史消息总字节数的上限，超过之后提前销毁空闲的room
+    public static final long DEFAULT_MAX_HISTORY_BYTES = Long.getLong("netty_test.chat.maxHistoryBytes", 64L * 1024 * 1024);
+    private static final AttributeKey<Room> ROOM = AttributeKey.valueOf("chatRoom");
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final long idleTtlMillis;
+    private final long maxHistoryBytes;
+
+    public ChatRooms() {
+        this(DEFAULT_IDLE_TTL_MILLIS, DEFAULT_MAX_HISTORY_BYTES);
+    }
+
+    /**
+     * @param idleTtlMillis   没有成员的room保留的时间，0表示最后一个成员离开就销毁
+     * @param maxHistoryBytes 历史消息总字节数超过该值的时候，空闲的room不再保留到idleTtl
+     */
+    public ChatRooms(long idleTtlMillis, long maxHistoryBytes) {
+        this.idleTtlMillis = idleTtlMillis;
+        this.maxHistoryBytes = maxHistoryBytes;
+    }
+
+    /**
+     * 从websocket的请求路径中解析room，/ws/{room}，没有指定的话使用DEFAULT_ROOM
+     *
+     * @param wsPath
+     * @param uri
+     * @return
+     */
+    public static String roomOf(String wsPath, String uri) {
+        if (null == uri || uri.length() <= wsPath.length() + 1) {
+            return DEFAULT_ROOM;
+        }
+        String room = uri.substring(wsPath.length() + 1);
+        int queryIdx = room.indexOf('?');
+        if (queryIdx >= 0) {
+            room = room.substring(0, queryIdx);
+        }
+        return room.isEmpty() ? DEFAULT_ROOM : room;
+    }
+
+    /**
+     * 加入room，如果已经在其他的room中，会先离开
+     *
+     * @param channel
+     * @param name
+     * @return
+     */
+    public Room join(Channel channel, String name) {
+        leave(channel);
+        Room room = rooms.compute(name, (k, r) -> {
+            Room target = null == r ? new Room(k) : r;
+            target.members++;
+            return target;
+        });
+        channel.attr(ROOM).set(room);
+        room.broadcaster.add(channel);
+        return room;
+    }
+
+    /**
+     * 离开当前的room，最后一个成员离开之后room保留idleTtl，idleTtl为0的时候立即销毁
+     *
+     * @param channel
+     * @return 离开的room，没有加入任何room的时候返回null
+     */
+    public Room leave(Channel channel) {
+        Room room = channel.attr(ROOM).getAndSet(null);
+        if (null == room) {
+            return null;
+        }
+        room.broadcaster.remove(channel);
+        rooms.computeIfPresent(room.name, (k, r) -> {
+            if (r != room || --r.members > 0) {
+                return r;
+            }
+            r.idleSince = System.currentTimeMillis();
+            return idleTtlMillis > 0 ? r : destroy(r);
+        });
+        closeIfDestroyed(room);
+        //只有在room变为空闲的时候空闲room持有的字节数才会增加，所以在这里检查
+        if (room.members == 0) {
+            evictIdleRooms();
+        }
+        return room;
+    }
+
+    /**
+     * 销毁空闲超过idleTtl的room，需要定期调用
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        for (Room room : rooms.values()) {
+            if (room.members > 0 || now - room.idleSince < idleTtlMillis) {
+                continue;
+            }
+            //在compute中再次检查，期间有可能有新的成员加入
+            rooms.computeIfPresent(room.name, (k, r) -> r == room && r.members == 0 && now - r.idleSince >= idleTtlMillis
+                    ? destroy(r) : r);
+            closeIfDestroyed(room);
+        }
+        evictIdleRooms();
+    }
+
+    /**
+     * 历史消息的总字节数超过maxHistoryBytes的时候，按照空闲的先后顺序销毁空闲的room，直到不超过或者没有空闲的room
+     */
+    private void evictIdleRooms() {
+        if (RoomHistory.totalBytes() <= maxHistoryBytes) {
+            return;
+        }
+        List<Room> idle = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            if (room.members == 0) {
+                idle.add(room);
+            }
+        }
+        idle.sort(Comparator.comparingLong(r -> r.idleSince));
+        for (Room room : idle) {
+            if (RoomHistory.totalBytes() <= maxHistoryBytes) {
+                return;
+            }
+            rooms.computeIfPresent(room.name, (k, r) -> r == room && r.members == 0 ? destroy(r) : r);
+            closeIfDestroyed(room);
+        }
+    }
+
+    /**
+     * 只能在rooms.compute中调用，返回null从rooms中移除
+     */
+    private static Room destroy(Room room) {
+        room.destroyed = true;
+        return null;
+    }
+
+    private static void closeIfDestroyed(Room room) {
+        if (room.destroyed) {
+            //room已经从rooms中移除，不会再被加入，释放历史消息
+            room.broadcaster.close();
+        }
+    }
+
+    public Room roomOf(Channel channel) {
+        return channel.attr(ROOM).get();
+    }
+
+    public Set<String> names() {
+        return rooms.keySet();
+    }
+
+    /**
+     * 单个room
+     */
+    public static final class Room {
+        private final String name;
+        private final Broadcaster broadcaster;
+        //只在rooms.compute中修改，其他地方的读取只用于统计和sweep的预检查
+        private volatile int members;
+        //最后一个成员离开的时间，members为0的时候有效
+        private volatile long idleSince;
+        private volatile boolean destroyed;
+
+        private Room(String name) {
+            this.name = name;
+            this.broadcaster = new Broadcaster(SlowConsumerGuard.OverflowPolicy.forRoom(name), Broadcaster.DEFAULT_MAX_BACKLOG,
+                    RoomHistory.newDefault());
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public Broadcaster broadcaster() {
+            return broadcaster;
+        }
+
+        public int members() {
+            return members;
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package org.seancheer.websocket;
 
-import com.sun.deploy.net.HttpUtils;
-import com.sun.javafx.sg.prism.NGTriangleMesh;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -10,44 +8,75 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.FileRegion;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
-import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpContentCompressor;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
 import io.netty.handler.ssl.SslHandler;
-import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.handler.stream.ChunkedFile;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.AsciiString;
 import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.ImmediateEventExecutor;
-import jdk.nashorn.internal.runtime.linker.Bootstrap;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.seancheer.SampledLogger;
+import org.seancheer.protobuf.CmdMessage;
+import org.seancheer.protobuf.CmdMsgDecoder;
+import org.seancheer.transport.Transport;
+import org.seancheer.transport.TransportOptions;
 
 import java.io.File;
-import java.io.RandomAccessFile;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * a simple websocket chat server.
@@ -59,22 +88,43 @@ public class ChatServer {
     private static final int port = 8080;
     private static final String addr = "127.0.0.1";
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
+        //在创建任何线程之前校验，配置错误的话直接退出
+        SlowConsumerGuard.OverflowPolicy overflowPolicy = SlowConsumerGuard.OverflowPolicy.defaultPolicy();
+        //group只用来在关闭的时候统一关闭所有的channel，广播通过每个room的Broadcaster进行
         final ChannelGroup group = new DefaultChannelGroup(ImmediateEventExecutor.INSTANCE);
-        final NioEventLoopGroup nioEventLoopGroup = new NioEventLoopGroup();
-        ServerBootstrap bootstrap = new ServerBootstrap();
-        bootstrap.group(nioEventLoopGroup).channel(NioServerSocketChannel.class).childHandler(
-                new WebSocketChannelInit(group));
-        ChannelFuture future = bootstrap.bind(new InetSocketAddress(addr, port));
-        future.syncUninterruptibly();
-        Channel channel = future.channel();
+        final ChatRooms rooms = new ChatRooms();
+        Transport transport = Transport.select();
+        TransportOptions options = TransportOptions.fromSystemProperties();
+        final EventLoopGroup eventLoopGroup = transport.newEventLoopGroup(0);
+        //超过高水位线之后channel变为不可写，广播的frame交给SlowConsumerGuard按照room的策略处理
+        WriteBufferWaterMark waterMark = new WriteBufferWaterMark(
+                Integer.getInteger("netty_test.chat.lowWaterMark", 32 * 1024),
+                Integer.getInteger("netty_test.chat.highWaterMark", 128 * 1024));
+        //业务handler可以放到单独的线程池中执行，避免阻塞同一个EventLoop上其他channel的读写，默认在I/O线程中执行
+        int businessThreads = Integer.getInteger("netty_test.chat.businessThreads", 0);
+        final EventExecutorGroup businessGroup = businessThreads > 0
+                ? new DefaultEventExecutorGroup(businessThreads, new DefaultThreadFactory("chat-business")) : null;
+        ServerBootstrap bootstrap = transport.newServerBootstrap(eventLoopGroup, options)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
+                .childHandler(new WebSocketChannelInit(group, rooms, businessGroup));
+        List<Channel> channels = transport.bind(bootstrap, new InetSocketAddress(addr, port), options);
+        System.out.println("ChatServer started with transport " + transport + ", acceptors:" + channels.size()
+                + ", business threads:" + businessThreads + ", overflow policy:" + overflowPolicy);
+        //空闲的room和历史消息保留到idleTtl，定期清理
+        eventLoopGroup.next().scheduleWithFixedDelay(rooms::sweep, 10, 10, TimeUnit.SECONDS);
+        int metricsInterval = Integer.getInteger("netty_test.chat.metricsInterval", 0);
+        if (metricsInterval > 0) {
+            eventLoopGroup.next().scheduleAtFixedRate(() -> System.out.println(queueDepth(eventLoopGroup, businessGroup)),
+                    metricsInterval, metricsInterval, TimeUnit.SECONDS);
+        }
 
         //添加jvm在关闭的时候需要处理的资源回收事项
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            destroy(group, nioEventLoopGroup);
+            destroy(group, eventLoopGroup, businessGroup);
         }));
 
-        channel.closeFuture().syncUninterruptibly();
+        channels.get(0).closeFuture().syncUninterruptibly();
     }
 
     /**
@@ -82,20 +132,60 @@ public class ChatServer {
      *
      * @param group
      * @param eventLoopGroup
+     * @param businessGroup
      */
-    private static void destroy(ChannelGroup group, EventLoopGroup eventLoopGroup) {
+    private static void destroy(ChannelGroup group, EventLoopGroup eventLoopGroup, EventExecutorGroup businessGroup) {
         group.close();
         eventLoopGroup.shutdownGracefully();
+        if (null != businessGroup) {
+            businessGroup.shutdownGracefully();
+        }
+    }
+
+    /**
+     * 每个executor中等待执行的任务数，业务线程池的队列持续增长说明业务处理跟不上，I/O线程的队列增长说明广播的压力过大
+     *
+     * @param eventLoopGroup
+     * @param businessGroup
+     * @return
+     */
+    static String queueDepth(EventExecutorGroup eventLoopGroup, EventExecutorGroup businessGroup) {
+        StringBuilder sb = new StringBuilder("queue depth, io:");
+        appendPendingTasks(sb, eventLoopGroup);
+        if (null != businessGroup) {
+            sb.append(", business:");
+            appendPendingTasks(sb, businessGroup);
+        }
+        return sb.toString();
+    }
+
+    private static void appendPendingTasks(StringBuilder sb, EventExecutorGroup group) {
+        sb.append('[');
+        int total = 0;
+        boolean first = true;
+        for (EventExecutor executor : group) {
+            int pending = executor instanceof SingleThreadEventExecutor
+                    ? ((SingleThreadEventExecutor) executor).pendingTasks() : -1;
+            if (!first) {
+                sb.append(',');
+            }
+            sb.append(pending);
+            total += Math.max(0, pending);
+            first = false;
+        }
+        sb.append("] total:").append(total);
     }
 
 
     /**
      * http reqeust handler
      */
-    static class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    static class HttpRequestHandler extends SimpleChannelInboundHandler<HttpObject> {
 
-        private static final String wsUri = "/ws";
+        static final String wsUri = "/ws";
+        static final String uploadUri = "/upload";
         private static File indexFile;
+        private final StaticFileCache fileCache = StaticFileCache.DEFAULT;
 
         static {
             URL path = HttpRequestHandler.class.getClassLoader().getResource("index.html");
@@ -108,45 +198,269 @@ public class ChatServer {
         }
 
 
+        //http2的stream上不支持websocket
+        private final boolean websocket;
+        //当前请求的请求头，请求体的HttpContent到达的时候使用，请求结束之后置为null
+        private HttpRequest request;
+        //当前正在接收的上传请求，不是上传请求的时候请求体直接丢弃
+        private UploadSpool upload;
+        //上传的响应要等文件关闭之后才能发送，在此之前pipeline过来的请求先保存在这里，响应发送之后再按顺序处理，
+        //保证http1的响应和请求的顺序一致。为null表示没有等待中的上传响应
+        private ArrayDeque<HttpObject> deferred;
+
+        HttpRequestHandler() {
+            this(true);
+        }
+
+        HttpRequestHandler(boolean websocket) {
+            this.websocket = websocket;
+        }
+
+        /**
+         * 除了websocket的握手请求之外，请求都是以HttpRequest + 若干个HttpContent + LastHttpContent的方式到达，
+         * 静态文件的请求在收到请求头的时候就回复，上传的请求体一边到达一边写入磁盘
+         *
+         * @param ctx
+         * @param msg
+         * @throws Exception
+         */
         @Override
-        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
-            if (!wsUri.equalsIgnoreCase(request.uri())) {
-                //如果需要100，那么发送100给用户
-                if (HttpUtil.is100ContinueExpected(request)) {
-                    send100Continue(ctx);
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+            if (null != deferred) {
+                deferred.add(ReferenceCountUtil.retain(msg));
+                return;
+            }
+            if (msg instanceof HttpRequest) {
+                HttpRequest req = (HttpRequest) msg;
+                if (websocket && isWebSocketUri(req.uri())) {
+                    //websocket的握手请求由WebSocketAggregator聚合成了FullHttpRequest
+                    //retain是为了保证request在该handler处理完成后不会释放
+                    ReferenceCountUtil.retain(msg);
+                    ctx.fireChannelRead(msg);
+                    return;
                 }
+                request = req;
+                onRequest(ctx, req);
+            }
+            if (msg instanceof HttpContent && null != request) {
+                onContent(ctx, (HttpContent) msg);
+            }
+        }
 
-                RandomAccessFile file = new RandomAccessFile(indexFile, "r");
-                HttpResponse response = new DefaultHttpResponse(request.protocolVersion(), HttpResponseStatus.OK);
-                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=utf-8");
-                boolean isKeepAlive = HttpUtil.isKeepAlive(request);
-                if (isKeepAlive) {
-                    response.headers().set(HttpHeaderNames.CONTENT_LENGTH, file.length());
-                    response.headers().set(HttpHeaderNames.CONNECTION, "");
+        private void onRequest(ChannelHandlerContext ctx, HttpRequest req) throws IOException {
+            if (isWebSocketUri(req.uri())) {
+                sendStatus(ctx, req, HttpResponseStatus.NOT_FOUND, null);
+                return;
+            }
+            if (!uploadUri.equals(req.uri())) {
+                if (HttpUtil.is100ContinueExpected(req)) {
+                    send100Continue(ctx);
                 }
+                //请求体不需要，到达之后直接丢弃
+                sendFile(ctx, req, fileCache.get(indexFile));
+                return;
+            }
 
-                ctx.write(response);
-                if (ctx.pipeline().get(SslHandler.class) == null) {
-                    //如果不需要加密，那么可以直接通过零拷贝的方式把文件发送给用户
-                    FileRegion fileRegion = new DefaultFileRegion(file.getChannel(), 0, file.length());
-                    ctx.write(fileRegion);
-                } else {
-                    //否则的话，采用nio的写文件方式，该方式会进行内存拷贝
-                    ChunkedNioFile nioFile = new ChunkedNioFile(file.getChannel());
-                    ctx.write(nioFile);
+            if (!HttpMethod.POST.equals(req.method()) && !HttpMethod.PUT.equals(req.method())) {
+                sendStatus(ctx, req, HttpResponseStatus.METHOD_NOT_ALLOWED, null);
+                return;
+            }
+            //Content-Length已经超过限制的话不需要再接收请求体，也不能回复100
+            if (HttpUtil.getContentLength(req, -1L) > UploadSpool.DEFAULT_MAX_BYTES) {
+                tooLarge(ctx, req);
+                return;
+            }
+            if (HttpUtil.is100ContinueExpected(req)) {
+                send100Continue(ctx);
+            }
+            upload = UploadSpool.create(UploadSpool.DEFAULT_DIR, UploadSpool.DEFAULT_MAX_BYTES, ctx.channel());
+        }
+
+        private void onContent(final ChannelHandlerContext ctx, HttpContent content) {
+            final HttpRequest req = request;
+            if (content instanceof LastHttpContent) {
+                request = null;
+            }
+            if (null == upload) {
+                return;
+            }
+
+            if (!upload.write(content.content())) {
+                upload.abort();
+                upload = null;
+                request = null;
+                tooLarge(ctx, req);
+                return;
+            }
+            if (content instanceof LastHttpContent) {
+                final long size = upload.accepted();
+                //响应发送之前暂停读取，已经解码出来的后续请求保存在deferred中
+                deferred = new ArrayDeque<>();
+                ctx.channel().config().setAutoRead(false);
+                upload.finish().addListener(f -> ctx.executor().execute(() -> {
+                    //文件在上传线程中关闭，完成之后回到channel的线程中回复
+                    if (f.isSuccess()) {
+                        sendStatus(ctx, req, HttpResponseStatus.CREATED, size + " bytes -> " + f.getNow() + "\n");
+                    } else {
+                        f.cause().printStackTrace();
+                        sendStatus(ctx, req, HttpResponseStatus.INTERNAL_SERVER_ERROR, null);
+                    }
+                    resumeDeferred(ctx);
+                }));
+                upload = null;
+            }
+        }
+
+        /**
+         * 上传的响应已经写出，按顺序处理等待中的请求，其中如果又有上传完成，剩下的请求继续等待
+         *
+         * @param ctx
+         */
+        private void resumeDeferred(ChannelHandlerContext ctx) {
+            ArrayDeque<HttpObject> queued = deferred;
+            deferred = null;
+            if (null == queued) {
+                //连接已经关闭
+                return;
+            }
+            HttpObject msg;
+            while (null != (msg = queued.poll())) {
+                try {
+                    channelRead0(ctx, msg);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    ctx.close();
+                } finally {
+                    ReferenceCountUtil.release(msg);
                 }
+            }
+            ctx.flush();
+            if (null == deferred) {
+                ctx.channel().config().setAutoRead(true);
+            }
+        }
 
-                //写入http最后需要的内容
-                ChannelFuture future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
-                if (!isKeepAlive) {
-                    future.addListener(ChannelFutureListener.CLOSE);
+        /**
+         * 请求体太大，回复413并关闭连接，剩余的请求体不再读取
+         *
+         * @param ctx
+         * @param req
+         */
+        private void tooLarge(ChannelHandlerContext ctx, HttpRequest req) {
+            request = null;
+            FullHttpResponse response = new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+            HttpUtil.setContentLength(response, 0);
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+
+        private void sendStatus(ChannelHandlerContext ctx, HttpRequest req, HttpResponseStatus status, String body) {
+            boolean isKeepAlive = HttpUtil.isKeepAlive(req);
+            FullHttpResponse response = null == body ? new DefaultFullHttpResponse(req.protocolVersion(), status)
+                    : new DefaultFullHttpResponse(req.protocolVersion(), status, Unpooled.copiedBuffer(body, CharsetUtil.UTF_8));
+            if (null != body) {
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+            }
+            HttpUtil.setContentLength(response, response.content().readableBytes());
+            HttpUtil.setKeepAlive(response, isKeepAlive);
+            ChannelFuture future = ctx.write(response);
+            if (!isKeepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            //上传没有完成连接就断开了，删除不完整的文件
+            if (null != upload) {
+                upload.abort();
+                upload = null;
+            }
+            if (null != deferred) {
+                for (HttpObject msg : deferred) {
+                    ReferenceCountUtil.release(msg);
                 }
+                deferred = null;
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            ctx.flush();
+            super.channelReadComplete(ctx);
+        }
+
+        /**
+         * 发送静态文件，客户端缓存有效的时候回复304，缓存的文件直接写内存中的内容，没有缓存内容的大文件仍然使用FileRegion
+         *
+         * @param ctx
+         * @param request
+         * @param entry
+         */
+        private void sendFile(ChannelHandlerContext ctx, HttpRequest request, StaticFileCache.Entry entry) {
+            boolean isKeepAlive = HttpUtil.isKeepAlive(request);
+            StaticFileCache.Variant variant = entry.select(request.headers());
+            HttpResponse response;
+            if (entry.isNotModified(request.headers(), variant)) {
+                response = new DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.NOT_MODIFIED);
+            } else if (variant.isCached()) {
+                response = new DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.OK, variant.content());
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, entry.contentType());
+                HttpUtil.setContentLength(response, variant.length());
             } else {
-                //retain是为了保证request在该handler处理完成后不会释放
-                ctx.fireChannelRead(request.retain());
+                response = new DefaultHttpResponse(request.protocolVersion(), HttpResponseStatus.OK);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, entry.contentType());
+                HttpUtil.setContentLength(response, variant.length());
+            }
+            //已经压缩过的版本带有Content-Encoding，原始版本由StaticAwareCompressor根据ETag跳过，FileRegion也没有办法压缩
+            if (null != variant.encoding()) {
+                response.headers().set(HttpHeaderNames.CONTENT_ENCODING, variant.encoding());
+            }
+            if (entry.hasVariants()) {
+                response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+            }
+            response.headers().set(HttpHeaderNames.ETAG, variant.etag());
+            response.headers().set(HttpHeaderNames.LAST_MODIFIED, entry.lastModifiedHeader());
+            HttpUtil.setKeepAlive(response, isKeepAlive);
+
+            //这里只write，同一次read中pipeline过来的多个请求的响应在channelReadComplete的时候统一flush，并且按照请求的顺序发送
+            ChannelFuture future;
+            if (response instanceof FullHttpResponse) {
+                future = ctx.write(response);
+            } else {
+                ctx.write(response);
+                //http2的stream channel只能发送HttpContent，不能使用FileRegion
+                if (ctx.pipeline().get(SslHandler.class) == null && !(ctx.channel() instanceof Http2StreamChannel)) {
+                    //如果不需要加密，那么可以直接通过零拷贝的方式把文件发送给用户，FileRegion释放的时候会关闭文件
+                    ctx.write(new DefaultFileRegion(entry.file(), 0, variant.length()));
+                    //写入http最后需要的内容
+                    future = ctx.write(LastHttpContent.EMPTY_LAST_CONTENT);
+                } else {
+                    //否则的话，采用ChunkedFile的写文件方式，该方式会进行内存拷贝，ChunkedWriteHandler写完之后会关闭文件。
+                    //HttpChunkedInput把文件的内容包装成HttpContent，并且最后会输出LastHttpContent，http2的stream channel也能正确的编码
+                    try {
+                        future = ctx.write(new HttpChunkedInput(new ChunkedFile(entry.file())));
+                    } catch (IOException e) {
+                        ctx.fireExceptionCaught(e);
+                        return;
+                    }
+                }
+            }
+            if (!isKeepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
             }
         }
 
+        /**
+         * /ws或者/ws/{room}
+         *
+         * @param uri
+         * @return
+         */
+        static boolean isWebSocketUri(String uri) {
+            return wsUri.equalsIgnoreCase(uri) || uri.regionMatches(true, 0, wsUri + "/", 0, wsUri.length() + 1);
+        }
+
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
             cause.printStackTrace();
@@ -165,17 +479,22 @@ public class ChatServer {
     }
 
     /**
-     * 处理websocket frame的handler
+     * 处理websocket frame的handler，消息只会发送给同一个room中的客户端，
+     * 客户端通过/ws/{room}连接或者发送"/join {room}"切换room，发送"/history {since}"获取序号大于since的历史消息
      */
     static class TextWebSocketFramHandler extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+        private static final String JOIN_CMD = "/join ";
+        private static final String HISTORY_CMD = "/history";
         private final ChannelGroup channelGroup;
+        private final ChatRooms rooms;
 
-        public TextWebSocketFramHandler(ChannelGroup group) {
+        public TextWebSocketFramHandler(ChannelGroup group, ChatRooms rooms) {
             this.channelGroup = group;
+            this.rooms = rooms;
         }
 
         /**
-         * 将客户端传来的信息发送给所有的客户端
+         * 将客户端传来的信息发送给同一个room中的所有客户端
          *
          * @param ctx
          * @param msg
@@ -183,23 +502,87 @@ public class ChatServer {
          */
         @Override
         protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame msg) throws Exception {
-            channelGroup.writeAndFlush(msg.retain());
+            String cmd = command(msg);
+            if (null != cmd && cmd.startsWith(JOIN_CMD)) {
+                switchRoom(rooms, ctx.channel(), cmd.substring(JOIN_CMD.length()).trim());
+                return;
+            }
+            if (null != cmd && cmd.startsWith(HISTORY_CMD)) {
+                sendHistory(rooms, ctx.channel(), cmd.substring(HISTORY_CMD.length()).trim());
+                return;
+            }
+            ChatRooms.Room room = rooms.roomOf(ctx.channel());
+            if (null != room) {
+                //broadcast会获取所有权，只编码一次，然后按照EventLoop分批发送
+                room.broadcaster().broadcast(msg.retain());
+            }
+        }
+
+        /**
+         * 只有以JOIN_CMD或者HISTORY_CMD开头的短消息才解码成字符串，普通的聊天消息不需要解码
+         *
+         * @param msg
+         * @return
+         */
+        private static String command(TextWebSocketFrame msg) {
+            ByteBuf content = msg.content();
+            if (content.readableBytes() < HISTORY_CMD.length() || content.readableBytes() > 256
+                    || content.getByte(content.readerIndex()) != '/') {
+                return null;
+            }
+            String text = msg.text();
+            return text.startsWith(JOIN_CMD) || text.startsWith(HISTORY_CMD) ? text : null;
+        }
+
+        /**
+         * 发送当前room中序号大于since的一页历史消息，since为空的时候从最旧的消息开始
+         *
+         * @param rooms
+         * @param channel
+         * @param since
+         */
+        static void sendHistory(ChatRooms rooms, Channel channel, String since) {
+            ChatRooms.Room room = rooms.roomOf(channel);
+            if (null == room) {
+                return;
+            }
+            long seq = 0;
+            try {
+                seq = since.isEmpty() ? 0 : Long.parseLong(since);
+            } catch (NumberFormatException e) {
+                //非法的序号按照0处理
+            }
+            room.broadcaster().sendHistory(channel, seq, RoomHistory.DEFAULT_PAGE_SIZE);
+        }
+
+        static void switchRoom(ChatRooms rooms, Channel channel, String name) {
+            if (name.isEmpty()) {
+                return;
+            }
+            ChatRooms.Room old = rooms.leave(channel);
+            if (null != old) {
+                old.broadcaster().broadcast(new TextWebSocketFrame("Client " + channel.remoteAddress() + " left room " + old.name()));
+            }
+            ChatRooms.Room room = rooms.join(channel, name);
+            room.broadcaster().broadcast(new TextWebSocketFrame("Client " + channel.remoteAddress() + " joined room " + room.name()));
         }
 
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
             Channel curChannel = ctx.channel();
             channelGroup.remove(curChannel);
+            ChatRooms.Room room = rooms.leave(curChannel);
+            if (null == room) {
+                //websocket握手还没有完成
+                return;
+            }
+            SlowConsumerGuard.Backlog backlog = SlowConsumerGuard.backlog(curChannel);
+            System.out.println(String.format("Client[%s] dropped frames:%d, queued bytes:%d",
+                    curChannel.remoteAddress().toString(), backlog.droppedFrames(), backlog.queuedBytes()));
             String msg = String.format("Client[%s] has been left.",
                     curChannel.remoteAddress().toString());
             System.out.println(msg);
-            channelGroup.writeAndFlush(new TextWebSocketFrame(msg));
-//                    .addListener(new ChannelFutureListener() {
-//                        @Override
-//                        public void operationComplete(ChannelFuture future) throws Exception {
-//                            System.out.println("Leaving msg has been send!");
-//                        }
-//                    });
+            room.broadcaster().broadcast(new TextWebSocketFrame(msg));
         }
 
         @Override
@@ -208,10 +591,12 @@ public class ChatServer {
                 //没有新创建的channel都会被分配一个新的pipeline，所以这里的remove是没有问题的，只是当前已经创建好的websocket channel移除掉了HttpHandler，
                 //其他的并不会受到影响
                 ctx.pipeline().remove(HttpRequestHandler.class);
-                //将加入信息发送给所有的channel
-                channelGroup.writeAndFlush(new TextWebSocketFrame("Client " + ctx.channel().remoteAddress().toString() + " joined"));
-                //将当前channel加入到channel group中
+                String name = ChatRooms.roomOf(HttpRequestHandler.wsUri,
+                        ((WebSocketServerProtocolHandler.HandshakeComplete) evt).requestUri());
+                //将当前channel加入到channel group中，然后将加入信息发送给room中的所有channel
                 channelGroup.add(ctx.channel());
+                ChatRooms.Room room = rooms.join(ctx.channel(), name);
+                room.broadcaster().broadcast(new TextWebSocketFrame("Client " + ctx.channel().remoteAddress().toString() + " joined room " + room.name()));
             } else {
                 super.userEventTriggered(ctx, evt);
             }
@@ -224,24 +609,219 @@ public class ChatServer {
         }
     }
 
+    /**
+     * 处理binary frame，每个frame的内容是一个不带长度字段的CmdMsg，直接从frame的ByteBuf中解析，
+     * 按照type路由，不需要像文本消息那样解码字符串再解析命令
+     */
+    static class CmdMsgFrameHandler extends SimpleChannelInboundHandler<BinaryWebSocketFrame> {
+        //desc是聊天内容，原样广播给room中的所有客户端
+        static final int TYPE_CHAT = 1;
+        //desc是room的名字
+        static final int TYPE_JOIN = 2;
+        //原样返回给发送者，客户端可以用来测量往返时间
+        static final int TYPE_ECHO = 3;
+        //desc是序号，返回序号大于它的一页历史消息
+        static final int TYPE_HISTORY = 4;
+        //未知的type由客户端决定发送的频率，采样之后异步打印，不在I/O线程或者业务线程中同步的println
+        private static final SampledLogger LOGGER = new SampledLogger("ChatServer",
+                Integer.getInteger("netty_test.chat.logSampleRate", 100));
+        private final ChatRooms rooms;
+
+        public CmdMsgFrameHandler(ChatRooms rooms) {
+            this.rooms = rooms;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, BinaryWebSocketFrame frame) throws Exception {
+            ByteBuf content = frame.content();
+            CmdMessage.CmdMsg msg = CmdMsgDecoder.parse(content, content.readerIndex(), content.readableBytes());
+            switch (msg.getType()) {
+                case TYPE_CHAT:
+                    ChatRooms.Room room = rooms.roomOf(ctx.channel());
+                    if (null != room) {
+                        //已经是编码好的CmdMsg，不需要重新序列化，broadcast会获取所有权
+                        room.broadcaster().broadcast(frame.retain());
+                    }
+                    break;
+                case TYPE_JOIN:
+                    TextWebSocketFramHandler.switchRoom(rooms, ctx.channel(), msg.getDesc().trim());
+                    break;
+                case TYPE_ECHO:
+                    //不能绕过SlowConsumerGuard，否则会越过backlog中的广播，不读数据的客户端也可以让发送缓冲区无限增长
+                    ChatRooms.Room current = rooms.roomOf(ctx.channel());
+                    SlowConsumerGuard.reply(ctx.channel(), frame.retain(), null == current
+                            ? SlowConsumerGuard.OverflowPolicy.defaultPolicy() : current.broadcaster().policy());
+                    break;
+                case TYPE_HISTORY:
+                    TextWebSocketFramHandler.sendHistory(rooms, ctx.channel(), msg.getDesc().trim());
+                    break;
+                default:
+                    if (LOGGER.shouldSample()) {
+                        LOGGER.log(String.format("Client[%s] unknown cmd type:%d", ctx.channel().remoteAddress(), msg.getType()));
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+
     /**
      * channel init class
      */
     static class WebSocketChannelInit extends ChannelInitializer<Channel> {
+        private static final int COMPRESS_THRESHOLD = Integer.getInteger("netty_test.chat.compressThreshold", 1024);
+        private static final boolean H2C_ENABLED = Boolean.parseBoolean(System.getProperty("netty_test.chat.h2c", "true"));
         public final ChannelGroup channelGroup;
+        private final ChatRooms rooms;
+        //为null的时候业务handler在I/O线程中执行
+        private final EventExecutorGroup businessGroup;
 
-        public WebSocketChannelInit(ChannelGroup group) {
+        public WebSocketChannelInit(ChannelGroup group, ChatRooms rooms, EventExecutorGroup businessGroup) {
             this.channelGroup = group;
+            this.rooms = rooms;
+            this.businessGroup = businessGroup;
+        }
+
+        @Override
+        protected void initChannel(Channel ch) throws Exception {
+            ChannelPipeline pipeline = ch.pipeline();
+            HttpServerCodec httpCodec = new HttpServerCodec();
+            if (!H2C_ENABLED) {
+                pipeline.addLast(httpCodec);
+                addHttp1Handlers(pipeline);
+                return;
+            }
+
+            //同时支持Upgrade: h2c和prior knowledge两种方式，不是http2的连接仍然使用httpCodec，
+            //http1和websocket的handler在收到第一个http1请求的时候才添加，http2的连接不需要它们
+            HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(httpCodec, protocol ->
+                    AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)
+                            ? new Http2ServerUpgradeCodec(newHttp2FrameCodec(), newHttp2MultiplexHandler()) : null);
+            pipeline.addLast(new CleartextHttp2ServerUpgradeHandler(httpCodec, upgradeHandler, new Http2ConnectionInit()));
+            pipeline.addLast(new Http1Installer(this));
+        }
+
+        void addHttp1Handlers(ChannelPipeline pipeline) {
+            //动态的响应超过阈值的时候在线压缩，静态文件使用缓存中预先压缩好的版本，websocket握手成功之后会被移除
+            pipeline.addLast(new StaticAwareCompressor(COMPRESS_THRESHOLD),
+                    new ChunkedWriteHandler(),
+                    //只聚合websocket的握手请求，其他的请求体以HttpContent的方式流式的交给HttpRequestHandler
+                    new WebSocketAggregator(64 * 1024),
+                    new HttpRequestHandler());
+            if (PerMessageDeflate.ENABLED) {
+                //协商permessage-deflate，需要在WebSocketServerProtocolHandler之前
+                pipeline.addLast(PerMessageDeflate.newExtensionHandler());
+            }
+            //allowExtensions为true，允许RSV1；checkStartsWith为true，/ws/{room}也会进行握手
+            pipeline.addLast(new WebSocketServerProtocolHandler(HttpRequestHandler.wsUri, null, true, 64 * 1024, false, true),
+                    //分片的消息合并成一个完整的frame，没有分片的frame直接通过
+                    new WebSocketFrameAggregator(64 * 1024),
+                    //SlowConsumerGuard需要在I/O线程中执行
+                    SlowConsumerGuard.INSTANCE);
+            //DefaultEventExecutorGroup会把同一个channel的handler固定在一个executor上，所以同一个连接的消息仍然是有序的
+            pipeline.addLast(businessGroup, "chatHandler", new TextWebSocketFramHandler(channelGroup, rooms));
+            pipeline.addLast(businessGroup, "cmdHandler", new CmdMsgFrameHandler(rooms));
+        }
+
+        private static Http2FrameCodec newHttp2FrameCodec() {
+            return Http2FrameCodecBuilder.forServer().build();
+        }
+
+        private static Http2MultiplexHandler newHttp2MultiplexHandler() {
+            return new Http2MultiplexHandler(new Http2StreamInit());
+        }
+    }
+
+    /**
+     * 静态文件的响应由StaticFileCache按照Accept-Encoding选择好了版本，带有强ETag，在线压缩之后ETag就不对了，
+     * 所以带ETag的响应原样发送，不再设置Content-Encoding: identity来绕过压缩(RFC 7231 §8.4不允许)
+     */
+    static class StaticAwareCompressor extends HttpContentCompressor {
+        StaticAwareCompressor(int contentSizeThreshold) {
+            super(6, 15, 8, contentSizeThreshold);
+        }
+
+        @Override
+        protected Result beginEncode(HttpResponse headers, String acceptEncoding) throws Exception {
+            if (headers.headers().contains(HttpHeaderNames.ETAG)) {
+                return null;
+            }
+            return super.beginEncode(headers, acceptEncoding);
+        }
+    }
+
+    /**
+     * 只聚合websocket的握手请求，WebSocketServerProtocolHandler需要FullHttpRequest，
+     * 其他请求的HttpRequest和HttpContent直接传递给下一个handler，不会在内存中缓存整个请求体
+     */
+    static class WebSocketAggregator extends HttpObjectAggregator {
+        WebSocketAggregator(int maxContentLength) {
+            super(maxContentLength);
+        }
+
+        @Override
+        protected boolean isStartMessage(HttpObject msg) throws Exception {
+            return msg instanceof HttpRequest && HttpRequestHandler.isWebSocketUri(((HttpRequest) msg).uri());
+        }
+    }
+
+    /**
+     * 收到第一个http1的请求的时候添加http1和websocket的handler，连接升级到http2之后直接移除自己
+     */
+    static class Http1Installer extends ChannelInboundHandlerAdapter {
+        private final WebSocketChannelInit init;
+
+        Http1Installer(WebSocketChannelInit init) {
+            this.init = init;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpObject) {
+                init.addHttp1Handlers(ctx.pipeline());
+                ctx.pipeline().remove(this);
+            }
+            ctx.fireChannelRead(msg);
         }
 
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent
+                    || evt instanceof CleartextHttp2ServerUpgradeHandler.PriorKnowledgeUpgradeEvent) {
+                ctx.pipeline().remove(this);
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
+    /**
+     * prior knowledge的连接，在当前位置依次添加Http2FrameCodec和Http2MultiplexHandler
+     */
+    static class Http2ConnectionInit extends ChannelHandlerAdapter {
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            ChannelPipeline pipeline = ctx.pipeline();
+            pipeline.addAfter(ctx.name(), "http2FrameCodec", WebSocketChannelInit.newHttp2FrameCodec());
+            pipeline.addAfter("http2FrameCodec", "http2Multiplex", WebSocketChannelInit.newHttp2MultiplexHandler());
+            pipeline.remove(this);
+        }
+    }
+
+    /**
+     * http2的每个stream是一个单独的child channel，转换为http1的对象之后复用HttpRequestHandler，
+     * 多个请求在一个连接上并发进行，不存在http1的队头阻塞
+     */
+    static class Http2StreamInit extends ChannelInitializer<Channel> {
         @Override
         protected void initChannel(Channel ch) throws Exception {
-            ch.pipeline().addLast(new HttpServerCodec(),
+            ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true),
                     new ChunkedWriteHandler(),
-                    new HttpObjectAggregator(64 * 1024),
-                    new HttpRequestHandler(),
-                    new WebSocketServerProtocolHandler("/ws"),
-                    new TextWebSocketFramHandler(channelGroup));
+                    new HttpRequestHandler(false));
         }
     }
 }
@@ -0,0 +1,203 @@
+package org.seancheer.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionDecoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * permessage-deflate(RFC 7692)，服务端发出的每条消息都使用重置过的Deflater单独压缩(server_no_context_takeover)，
+ * 压缩结果和连接无关，所以广播的消息只需要压缩一次，所有协商了该扩展的channel共享同一份压缩之后的frame。
+ * netty自带的PerMessageDeflateEncoder每个channel一个Deflater，广播的时候每个接收者都要压缩一次，这里替换成了Encoder，
+ * 客户端发来的消息仍然使用netty自带的decoder解压。
+ *
+ * @author: seancheer
+ * @date: 2020/4/2
+ **/
+public class PerMessageDeflate {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("netty_test.chat.permessageDeflate", "true"));
+    private static final int LEVEL = Integer.getInteger("netty_test.chat.deflateLevel", 6);
+    //太短的消息压缩之后反而会变大
+    private static final int THRESHOLD = Integer.getInteger("netty_test.chat.deflateThreshold", 64);
+    private static final String SERVER_NO_CONTEXT = "server_no_context_takeover";
+    private static final AttributeKey<Boolean> NEGOTIATED = AttributeKey.valueOf("chatPerMessageDeflate");
+    //每个线程一个Deflater，每条消息之前reset，不保留上下文
+    private static final FastThreadLocal<Deflater> DEFLATER = new FastThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(LEVEL, true);
+        }
+
+        @Override
+        protected void onRemoval(Deflater deflater) {
+            deflater.end();
+        }
+    };
+
+    private PerMessageDeflate() {
+    }
+
+    /**
+     * 需要添加在WebSocketServerProtocolHandler之前
+     *
+     * @return
+     */
+    public static WebSocketServerExtensionHandler newExtensionHandler() {
+        return new WebSocketServerExtensionHandler(new Handshaker());
+    }
+
+    /**
+     * channel是否协商了permessage-deflate
+     *
+     * @param channel
+     * @return
+     */
+    public static boolean isNegotiated(Channel channel) {
+        return Boolean.TRUE.equals(channel.attr(NEGOTIATED).get());
+    }
+
+    /**
+     * 压缩一个完整的(没有分片的)text或者binary frame，不会释放frame
+     *
+     * @param frame
+     * @param alloc
+     * @return 压缩之后的frame，frame不需要压缩的时候返回null
+     */
+    public static WebSocketFrame compress(WebSocketFrame frame, ByteBufAllocator alloc) {
+        if (!isCompressible(frame)) {
+            return null;
+        }
+        ByteBuf compressed = deflate(frame.content(), alloc);
+        int rsv = frame.rsv() | WebSocketExtension.RSV1;
+        return frame instanceof TextWebSocketFrame ? new TextWebSocketFrame(true, rsv, compressed)
+                : new BinaryWebSocketFrame(true, rsv, compressed);
+    }
+
+    private static boolean isCompressible(WebSocketFrame frame) {
+        //分片的消息和控制帧不压缩，不压缩的消息RSV1为0，客户端可以正常处理
+        return (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame)
+                && frame.isFinalFragment() && (frame.rsv() & WebSocketExtension.RSV1) == 0
+                && frame.content().readableBytes() >= THRESHOLD;
+    }
+
+    /**
+     * 使用SYNC_FLUSH压缩并且去掉末尾的0x00 0x00 0xff 0xff，不输出BFINAL的block，
+     * 这样即使客户端保留了上下文也可以正确的解压
+     *
+     * @param content
+     * @param alloc
+     * @return
+     */
+    private static ByteBuf deflate(ByteBuf content, ByteBufAllocator alloc) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        int length = content.readableBytes();
+        if (content.hasArray()) {
+            deflater.setInput(content.array(), content.arrayOffset() + content.readerIndex(), length);
+        } else {
+            byte[] input = new byte[length];
+            content.getBytes(content.readerIndex(), input);
+            deflater.setInput(input);
+        }
+
+        ByteBuf out = alloc.heapBuffer(length / 2 + 64);
+        try {
+            while (true) {
+                out.ensureWritable(64);
+                int writable = out.writableBytes();
+                int n = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), writable, Deflater.SYNC_FLUSH);
+                out.writerIndex(out.writerIndex() + n);
+                //输出缓冲区没有写满说明已经flush完了
+                if (n < writable) {
+                    break;
+                }
+            }
+            out.writerIndex(out.writerIndex() - 4);
+            return out;
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 参数的校验交给netty自带的handshaker，只替换encoder，并且在响应中声明server_no_context_takeover
+     */
+    private static final class Handshaker implements WebSocketServerExtensionHandshaker {
+        //java的Deflater不能指定窗口大小，所以不接受server_max_window_bits
+        private final PerMessageDeflateServerExtensionHandshaker delegate =
+                new PerMessageDeflateServerExtensionHandshaker(LEVEL, false, 15, true, false);
+
+        @Override
+        public WebSocketServerExtension handshakeExtension(WebSocketExtensionData extensionData) {
+            final WebSocketServerExtension extension = delegate.handshakeExtension(extensionData);
+            if (null == extension) {
+                return null;
+            }
+            return new WebSocketServerExtension() {
+                @Override
+                public int rsv() {
+                    return extension.rsv();
+                }
+
+                @Override
+                public WebSocketExtensionEncoder newExtensionEncoder() {
+                    return new Encoder();
+                }
+
+                @Override
+                public WebSocketExtensionDecoder newExtensionDecoder() {
+                    return extension.newExtensionDecoder();
+                }
+
+                @Override
+                public WebSocketExtensionData newReponseData() {
+                    WebSocketExtensionData data = extension.newReponseData();
+                    Map<String, String> parameters = new HashMap<>(data.parameters());
+                    parameters.put(SERVER_NO_CONTEXT, null);
+                    return new WebSocketExtensionData(data.name(), parameters);
+                }
+            };
+        }
+    }
+
+    /**
+     * 单独发送给某个channel的frame也按照同样的方式压缩，和共享的广播frame不会互相影响
+     */
+    private static final class Encoder extends WebSocketExtensionEncoder {
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            //握手响应发送成功之后才会添加，之后的广播会使用压缩过的frame
+            ctx.channel().attr(NEGOTIATED).set(Boolean.TRUE);
+            super.handlerAdded(ctx);
+        }
+
+        @Override
+        public boolean acceptOutboundMessage(Object msg) throws Exception {
+            return super.acceptOutboundMessage(msg) && isCompressible((WebSocketFrame) msg);
+        }
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, WebSocketFrame msg, List<Object> out) throws Exception {
+            out.add(compress(msg, ctx.alloc()));
+        }
+    }
+}
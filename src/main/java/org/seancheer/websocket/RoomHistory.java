@@ -0,0 +1,198 @@
+package org.seancheer.websocket;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个room最近的广播消息，保存的是Broadcaster已经编码好的websocket frame(direct buffer，和广播共享同一份内存，只是多一个引用)，
+ * 环形数组最多保存maxFrames个，超过maxAgeMillis的消息在写入和读取的时候淘汰。
+ * 每条消息有一个room内递增的序号，新加入的channel先收到历史消息，客户端可以通过序号分页获取某个序号之后的消息，
+ * 不需要再去后端查询历史记录。读取的时候返回retainedDuplicate，不会拷贝内容。
+ * append和Broadcaster的入队在同一个锁中完成，保证每个EventLoop的待发送队列中的消息也是按照序号排列的。
+ * 所有room保存的字节数汇总在TOTAL_BYTES中，ChatRooms根据它限制空闲room占用的内存。
+ *
+ * @author: seancheer
+ * @date: 2020/4/3
+ **/
+public class RoomHistory {
+    public static final int DEFAULT_MAX_FRAMES = Integer.getInteger("netty_test.chat.historySize", 100);
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("netty_test.chat.historySeconds", 600));
+    public static final int DEFAULT_PAGE_SIZE = Integer.getInteger("netty_test.chat.historyPage", 50);
+    private static final AtomicLong TOTAL_BYTES = new AtomicLong();
+
+    private final ByteBuf[] frames;
+    private final long[] timestamps;
+    //保存的时候frame的大小，释放的时候从TOTAL_BYTES中减去，不依赖共享frame的读写索引
+    private final int[] sizes;
+    private final long maxAgeMillis;
+    //下一条消息的序号，第一条消息的序号为1
+    private long nextSeq = 1;
+    //环中最旧的消息的序号，等于nextSeq的时候为空
+    private long firstSeq = 1;
+    private boolean closed;
+
+    public RoomHistory(int maxFrames, long maxAgeMillis) {
+        if (maxFrames <= 0) {
+            throw new IllegalArgumentException("maxFrames must be positive: " + maxFrames);
+        }
+        this.frames = new ByteBuf[maxFrames];
+        this.timestamps = new long[maxFrames];
+        this.sizes = new int[maxFrames];
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * 使用默认配置创建，historySize为0的时候不保存历史，返回null
+     *
+     * @return
+     */
+    public static RoomHistory newDefault() {
+        return DEFAULT_MAX_FRAMES > 0 ? new RoomHistory(DEFAULT_MAX_FRAMES, DEFAULT_MAX_AGE_MILLIS) : null;
+    }
+
+    /**
+     * 保存一条消息，会retain encoded，调用方需要持有该对象的锁
+     *
+     * @param encoded
+     * @return 消息的序号
+     */
+    long append(ByteBuf encoded) {
+        long seq = nextSeq++;
+        if (closed) {
+            firstSeq = nextSeq;
+            return seq;
+        }
+        if (seq - firstSeq == frames.length) {
+            evictFirst();
+        }
+        int idx = index(seq);
+        frames[idx] = encoded.retain();
+        timestamps[idx] = System.currentTimeMillis();
+        sizes[idx] = encoded.readableBytes();
+        TOTAL_BYTES.addAndGet(sizes[idx]);
+        expire();
+        return seq;
+    }
+
+    /**
+     * 所有room的历史消息一共持有的字节数
+     *
+     * @return
+     */
+    public static long totalBytes() {
+        return TOTAL_BYTES.get();
+    }
+
+    /**
+     * 最新一条消息的序号，还没有消息的时候为0
+     *
+     * @return
+     */
+    public synchronized long latestSeq() {
+        return nextSeq - 1;
+    }
+
+    /**
+     * 获取序号大于since的消息，最多limit条
+     *
+     * @param since
+     * @param limit
+     * @return
+     */
+    public synchronized Page since(long since, int limit) {
+        expire();
+        long from = Math.max(since + 1, firstSeq);
+        long to = Math.min(nextSeq, from + limit);
+        List<ByteBuf> result = new ArrayList<>((int) Math.max(0, to - from));
+        for (long seq = from; seq < to; seq++) {
+            result.add(frames[index(seq)].retainedDuplicate());
+        }
+        return new Page(result, to - 1, nextSeq - 1);
+    }
+
+    /**
+     * 最近的limit条消息
+     *
+     * @param limit
+     * @return
+     */
+    public synchronized Page latest(int limit) {
+        return since(nextSeq - 1 - limit, limit);
+    }
+
+    /**
+     * room销毁的时候调用，释放所有的消息，之后append的消息不再保存
+     */
+    public synchronized void close() {
+        closed = true;
+        while (firstSeq < nextSeq) {
+            evictFirst();
+        }
+    }
+
+    private void expire() {
+        if (maxAgeMillis <= 0) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() - maxAgeMillis;
+        while (firstSeq < nextSeq && timestamps[index(firstSeq)] < deadline) {
+            evictFirst();
+        }
+    }
+
+    private void evictFirst() {
+        int idx = index(firstSeq++);
+        ByteBuf frame = frames[idx];
+        frames[idx] = null;
+        if (null != frame) {
+            TOTAL_BYTES.addAndGet(-sizes[idx]);
+            frame.release();
+        }
+    }
+
+    private int index(long seq) {
+        return (int) (seq % frames.length);
+    }
+
+    /**
+     * 一页历史消息，frames需要由调用方写出或者释放
+     */
+    public static final class Page {
+        private final List<ByteBuf> frames;
+        private final long lastSeq;
+        private final long latestSeq;
+
+        private Page(List<ByteBuf> frames, long lastSeq, long latestSeq) {
+            this.frames = frames;
+            this.lastSeq = lastSeq;
+            this.latestSeq = latestSeq;
+        }
+
+        public List<ByteBuf> frames() {
+            return frames;
+        }
+
+        /**
+         * 本页最后一条消息的序号，本页为空的时候等于最新的序号
+         *
+         * @return
+         */
+        public long lastSeq() {
+            return lastSeq;
+        }
+
+        public long latestSeq() {
+            return latestSeq;
+        }
+
+        public void release() {
+            for (ByteBuf frame : frames) {
+                frame.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.seancheer.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 慢消费者保护，配合channel的WRITE_BUFFER_WATER_MARK使用。
+ * channel可写的时候广播的frame直接写入ChannelOutboundBuffer，超过高水位线变为不可写之后，frame先保存在每个channel
+ * 自己的backlog中，backlog最多保存maxBacklog个frame，满了之后按照room的OverflowPolicy处理，等channel重新可写的时候再把backlog写出去。
+ * 这样一个不读数据的客户端最多只会持有高水位线加上maxBacklog个共享frame的引用，不会无限的堆积。
+ * 所有的方法都只能在channel所属的EventLoop中调用，所以该handler不能绑定到其他的EventExecutorGroup上。
+ *
+ * @author: seancheer
+ * @date: 2020/3/28
+ **/
+@ChannelHandler.Sharable
+public class SlowConsumerGuard extends ChannelInboundHandlerAdapter {
+    public static final SlowConsumerGuard INSTANCE = new SlowConsumerGuard();
+    private static final AttributeKey<Backlog> BACKLOG = AttributeKey.valueOf("chatBacklog");
+
+    /**
+     * channel不可写并且backlog满了之后的处理方式
+     */
+    public enum OverflowPolicy {
+        //丢弃新到达的frame
+        DROP_NEWEST,
+        //丢弃backlog中最旧的frame
+        DROP_OLDEST,
+        //只保留最新的一个frame，适用于只关心最新状态的room
+        COALESCE,
+        //直接断开连接
+        DISCONNECT;
+
+        //默认值在类加载的时候校验，配置错误的话启动的时候就失败
+        private static final OverflowPolicy DEFAULT = parse("netty_test.chat.overflowPolicy",
+                System.getProperty("netty_test.chat.overflowPolicy", DROP_OLDEST.name()));
+        //配置错误的room，每个只打印一次
+        private static final Set<String> INVALID_ROOMS = ConcurrentHashMap.newKeySet();
+
+        /**
+         * -Dnetty_test.chat.overflowPolicy的值，默认DROP_OLDEST
+         *
+         * @return
+         */
+        public static OverflowPolicy defaultPolicy() {
+            return DEFAULT;
+        }
+
+        /**
+         * 读取-Dnetty_test.chat.overflowPolicy.{room}，没有或者配置错误的话使用默认值，在创建room的时候调用，不能抛出异常
+         *
+         * @param room
+         * @return
+         */
+        public static OverflowPolicy forRoom(String room) {
+            String key = "netty_test.chat.overflowPolicy." + room;
+            String value = System.getProperty(key);
+            if (null == value) {
+                return DEFAULT;
+            }
+            try {
+                return parse(key, value);
+            } catch (IllegalArgumentException e) {
+                if (INVALID_ROOMS.add(room)) {
+                    System.err.println(e.getMessage() + ", use " + DEFAULT + " instead");
+                }
+                return DEFAULT;
+            }
+        }
+
+        private static OverflowPolicy parse(String key, String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("invalid " + key + ": " + value + ", expected one of "
+                        + Arrays.toString(values()));
+            }
+        }
+    }
+
+    private SlowConsumerGuard() {
+    }
+
+    /**
+     * 给channel发送一个frame，会获取frame的所有权
+     *
+     * @param channel
+     * @param frame
+     * @param policy
+     * @param maxBacklog
+     * @return 是否写入了channel，需要flush
+     */
+    static boolean offer(Channel channel, ByteBuf frame, OverflowPolicy policy, int maxBacklog) {
+        Backlog backlog = backlog(channel);
+        if (backlog.isEmpty() && channel.isWritable()) {
+            channel.write(frame, channel.voidPromise());
+            return true;
+        }
+
+        if (policy == OverflowPolicy.COALESCE) {
+            backlog.dropAll();
+            backlog.add(frame);
+            return false;
+        }
+        if (backlog.size() < maxBacklog) {
+            backlog.add(frame);
+            return false;
+        }
+
+        switch (policy) {
+            case DROP_NEWEST:
+                backlog.drop(frame);
+                break;
+            case DROP_OLDEST:
+                backlog.drop(backlog.poll());
+                backlog.add(frame);
+                break;
+            default:
+                backlog.drop(frame);
+                backlog.dropAll();
+                channel.close();
+                break;
+        }
+        return false;
+    }
+
+    /**
+     * 单独回复给某个channel的消息(比如echo)，和广播的frame一样受到慢消费者保护：backlog为空并且channel可写的时候直接写出并flush，
+     * 否则不能越过backlog中还没有发送的广播，也不能让不读数据的客户端无限的堆积，所以DISCONNECT策略断开连接，其他策略直接丢弃。
+     * 会获取msg的所有权，可以在任意线程中调用，会切换到channel的EventLoop中执行
+     *
+     * @param channel
+     * @param msg
+     * @param policy
+     */
+    static void reply(final Channel channel, final Object msg, final OverflowPolicy policy) {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(() -> reply(channel, msg, policy));
+            return;
+        }
+        Backlog backlog = backlog(channel);
+        if (backlog.isEmpty() && channel.isWritable()) {
+            channel.writeAndFlush(msg, channel.voidPromise());
+            return;
+        }
+        backlog.drop(msg);
+        if (policy == OverflowPolicy.DISCONNECT) {
+            channel.close();
+        }
+    }
+
+    public static Backlog backlog(Channel channel) {
+        Backlog backlog = channel.attr(BACKLOG).get();
+        if (null == backlog) {
+            //统计信息有可能在业务线程中读取，使用setIfAbsent避免和EventLoop同时创建
+            Backlog created = new Backlog(channel);
+            backlog = channel.attr(BACKLOG).setIfAbsent(created);
+            if (null == backlog) {
+                backlog = created;
+            }
+        }
+        return backlog;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        Channel channel = ctx.channel();
+        if (channel.isWritable()) {
+            backlog(channel).drain();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        //广播使用的是voidPromise，channel关闭的时候还在ChannelOutboundBuffer中的frame都会触发一次ClosedChannelException，直接忽略
+        if (cause instanceof ClosedChannelException && !ctx.channel().isActive()) {
+            return;
+        }
+        super.exceptionCaught(ctx, cause);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Backlog backlog = ctx.channel().attr(BACKLOG).get();
+        if (null != backlog) {
+            backlog.dropAll();
+        }
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * 每个channel的待发送队列和统计，只在EventLoop中修改，统计字段是volatile的，可以在其他线程读取
+     */
+    public static final class Backlog {
+        private final Channel channel;
+        private final ArrayDeque<ByteBuf> frames = new ArrayDeque<>();
+        private volatile long backlogBytes;
+        private volatile long droppedFrames;
+
+        private Backlog(Channel channel) {
+            this.channel = channel;
+        }
+
+        public long droppedFrames() {
+            return droppedFrames;
+        }
+
+        /**
+         * backlog中的字节数加上ChannelOutboundBuffer中还没有写出去的字节数
+         *
+         * @return
+         */
+        public long queuedBytes() {
+            ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+            return backlogBytes + (null == buffer ? 0 : buffer.totalPendingWriteBytes());
+        }
+
+        boolean isEmpty() {
+            return frames.isEmpty();
+        }
+
+        int size() {
+            return frames.size();
+        }
+
+        void add(ByteBuf frame) {
+            frames.add(frame);
+            backlogBytes += frame.readableBytes();
+        }
+
+        ByteBuf poll() {
+            ByteBuf frame = frames.poll();
+            if (null != frame) {
+                backlogBytes -= frame.readableBytes();
+            }
+            return frame;
+        }
+
+        void drop(Object frame) {
+            droppedFrames++;
+            ReferenceCountUtil.release(frame);
+        }
+
+        void dropAll() {
+            ByteBuf frame;
+            while (null != (frame = poll())) {
+                drop(frame);
+            }
+        }
+
+        /**
+         * channel重新可写了，尽量把backlog写出去，写到再次不可写为止
+         */
+        void drain() {
+            boolean written = false;
+            ByteBuf frame;
+            while (channel.isWritable() && null != (frame = poll())) {
+                channel.write(frame, channel.voidPromise());
+                written = true;
+            }
+            if (written) {
+                channel.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package org.seancheer.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * 静态文件的内存缓存，命中的时候直接写一个内存中的ByteBuf，不再需要每次open() + fstat() + sendfile()。
+ * 小文件读取到direct ByteBuffer中，包装成unreleasable的ByteBuf，每次发送的时候只duplicate，淘汰的时候只是从缓存中移除，
+ * 还在发送中的duplicate仍然引用着底层的ByteBuffer，等所有的引用都没有了之后由GC回收。
+ * 超过maxFileBytes的文件只缓存元数据，内容仍然通过FileRegion发送。
+ * 可压缩的文件在加载的时候同时生成gzip和deflate的版本，和原始内容一起缓存，按照Accept-Encoding选择，不需要每次请求都压缩。
+ * 缓存按照总字节数进行LRU淘汰，通过WatchService(linux上是inotify)监听文件所在的目录，文件修改或者删除之后立即失效。
+ *
+ * @author: seancheer
+ * @date: 2020/3/31
+ **/
+public class StaticFileCache {
+    public static final StaticFileCache DEFAULT = new StaticFileCache(
+            Long.getLong("netty_test.chat.staticCacheBytes", 16 * 1024 * 1024),
+            Integer.getInteger("netty_test.chat.staticMaxFileBytes", 1024 * 1024));
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    //太小的文件压缩没有意义
+    private static final int MIN_COMPRESS_BYTES = 256;
+
+    private final long maxBytes;
+    private final int maxFileBytes;
+    //accessOrder为true，按照访问顺序进行LRU淘汰
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    //每次invalidate或者clear都加1，加载期间发生了变化的话加载的内容可能已经过期，不放入缓存
+    private long generation;
+    private final Set<Path> watchedDirs = ConcurrentHashMap.newKeySet();
+    private volatile WatchService watcher;
+
+    public StaticFileCache(long maxBytes, int maxFileBytes) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    /**
+     * 获取文件的缓存，没有的话加载
+     *
+     * @param file
+     * @return
+     * @throws IOException 文件不存在或者读取失败
+     */
+    public Entry get(File file) throws IOException {
+        Path path = file.toPath().toAbsolutePath();
+        long loadGeneration;
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (null != entry) {
+                return entry;
+            }
+            loadGeneration = generation;
+        }
+
+        //加载不持有锁，并发加载同一个文件的时候只是多读了一次
+        watch(path.getParent());
+        Entry entry = load(path, file);
+        synchronized (this) {
+            if (loadGeneration != generation) {
+                //加载的过程中有文件失效了，本次请求仍然使用读到的内容，下次请求重新加载
+                return entry;
+            }
+            Entry old = entries.put(path, entry);
+            if (null != old) {
+                totalBytes -= old.cachedBytes();
+            }
+            totalBytes += entry.cachedBytes();
+            evict();
+        }
+        return entry;
+    }
+
+    public synchronized void invalidate(Path path) {
+        generation++;
+        Entry old = entries.remove(path);
+        if (null != old) {
+            totalBytes -= old.cachedBytes();
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Path, Entry>> iter = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iter.hasNext()) {
+            totalBytes -= iter.next().getValue().cachedBytes();
+            iter.remove();
+        }
+    }
+
+    private Entry load(Path path, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            long lastModified = file.lastModified();
+            if (length > maxFileBytes) {
+                //大文件用长度和修改时间作为弱ETag，不需要读取内容，也不提供压缩的版本
+                String etag = "W/\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+                return new Entry(file, lastModified, new Variant(null, null, length, etag), null, null);
+            }
+
+            byte[] bytes = new byte[(int) length];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                //读取到文件结尾
+            }
+            int size = buffer.position();
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, size);
+            String tag = Long.toHexString(crc.getValue()) + "-" + Long.toHexString(size);
+            Variant identity = new Variant(null, directBuffer(bytes, size), size, "\"" + tag + "\"");
+
+            //压缩的版本只在加载的时候生成一次，和原始内容一起缓存，只有压缩之后更小的时候才保留
+            Variant gzip = null;
+            Variant deflate = null;
+            if (isCompressible(file.getName()) && size >= MIN_COMPRESS_BYTES) {
+                gzip = compressed(GZIP, gzip(bytes, size), size, tag);
+                deflate = compressed(DEFLATE, deflate(bytes, size), size, tag);
+            }
+            return new Entry(file, lastModified, identity, gzip, deflate);
+        }
+    }
+
+    /**
+     * 内容放在direct ByteBuffer中，包装成unreleasable的ByteBuf
+     *
+     * @param bytes
+     * @param size
+     * @return
+     */
+    private static ByteBuf directBuffer(byte[] bytes, int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes, 0, size).flip();
+        return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(buffer));
+    }
+
+    private static Variant compressed(String encoding, byte[] compressed, int originalSize, String tag) {
+        if (compressed.length >= originalSize) {
+            return null;
+        }
+        //不同的编码是不同的representation，强ETag需要区分
+        String etag = "\"" + tag + "-" + encoding + "\"";
+        return new Variant(encoding, directBuffer(compressed, compressed.length), compressed.length, etag);
+    }
+
+    private static byte[] gzip(byte[] bytes, int size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size / 2 + 32);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(bytes, 0, size);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * http中的deflate指的是zlib格式，也就是Deflater默认的格式
+     */
+    private static byte[] deflate(byte[] bytes, int size) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(bytes, 0, size);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(size / 2 + 32);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static boolean isCompressible(String name) {
+        String type = Entry.contentType(name);
+        return type.startsWith("text/") || type.startsWith("application/javascript") || type.startsWith("application/json");
+    }
+
+    /**
+     * 监听文件所在的目录，每个目录只注册一次，注册失败的话只是不能自动失效
+     *
+     * @param dir
+     */
+    private void watch(Path dir) {
+        if (null == dir || watchedDirs.contains(dir)) {
+            return;
+        }
+        try {
+            WatchService service = watchService();
+            if (watchedDirs.add(dir)) {
+                dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized WatchService watchService() throws IOException {
+        if (null == watcher) {
+            watcher = FileSystems.getDefault().newWatchService();
+            Thread thread = new Thread(this::watchLoop, "static-file-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return watcher;
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        //丢失了事件，不知道哪些文件变化了，全部失效
+                        clear();
+                    } else {
+                        invalidate(dir.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirs.remove(dir);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //退出监听
+        }
+    }
+
+    /**
+     * 缓存的单个文件，所有字段都是不可变的
+     */
+    public static final class Entry {
+        private final File file;
+        private final long lastModified;
+        private final String lastModifiedHeader;
+        private final String contentType;
+        private final Variant identity;
+        //为null表示不可压缩或者压缩之后没有变小
+        private final Variant gzip;
+        private final Variant deflate;
+
+        private Entry(File file, long lastModified, Variant identity, Variant gzip, Variant deflate) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.lastModifiedHeader = DateFormatter.format(new Date(lastModified));
+            this.contentType = contentType(file.getName());
+            this.identity = identity;
+            this.gzip = gzip;
+            this.deflate = deflate;
+        }
+
+        public File file() {
+            return file;
+        }
+
+        public String lastModifiedHeader() {
+            return lastModifiedHeader;
+        }
+
+        public String contentType() {
+            return contentType;
+        }
+
+        /**
+         * 是否有压缩的版本，有的话响应需要带上Vary: Accept-Encoding
+         *
+         * @return
+         */
+        public boolean hasVariants() {
+            return null != gzip || null != deflate;
+        }
+
+        long cachedBytes() {
+            return identity.cachedBytes() + (null == gzip ? 0 : gzip.cachedBytes())
+                    + (null == deflate ? 0 : deflate.cachedBytes());
+        }
+
+        /**
+         * 根据Accept-Encoding选择发送的版本，优先gzip，q=0表示不接受，显式列出的编码优先于*
+         *
+         * @param headers
+         * @return
+         */
+        public Variant select(HttpHeaders headers) {
+            String acceptEncoding = headers.get(HttpHeaderNames.ACCEPT_ENCODING);
+            if (null == acceptEncoding || !hasVariants()) {
+                return identity;
+            }
+            //-1表示没有显式列出，使用*的q值
+            float gzipQ = -1;
+            float deflateQ = -1;
+            float anyQ = 0;
+            for (String coding : acceptEncoding.split(",")) {
+                String[] parts = coding.split(";");
+                String name = parts[0].trim().toLowerCase(Locale.ROOT);
+                float q = 1;
+                if (parts.length > 1) {
+                    String param = parts[1].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            q = Float.parseFloat(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            q = 0;
+                        }
+                    }
+                }
+                if (GZIP.equals(name) || "x-gzip".equals(name)) {
+                    gzipQ = Math.max(gzipQ, q);
+                } else if (DEFLATE.equals(name)) {
+                    deflateQ = Math.max(deflateQ, q);
+                } else if ("*".equals(name)) {
+                    anyQ = Math.max(anyQ, q);
+                }
+            }
+            if (gzipQ < 0) {
+                gzipQ = anyQ;
+            }
+            if (deflateQ < 0) {
+                deflateQ = anyQ;
+            }
+            if (null != gzip && gzipQ > 0 && gzipQ >= deflateQ) {
+                return gzip;
+            }
+            if (null != deflate && deflateQ > 0) {
+                return deflate;
+            }
+            return null != gzip && gzipQ > 0 ? gzip : identity;
+        }
+
+        /**
+         * 根据If-None-Match和If-Modified-Since判断客户端的缓存是否还有效，If-None-Match优先
+         *
+         * @param headers
+         * @param variant 选择发送的版本
+         * @return
+         */
+        public boolean isNotModified(HttpHeaders headers, Variant variant) {
+            String ifNoneMatch = headers.get(HttpHeaderNames.IF_NONE_MATCH);
+            if (null != ifNoneMatch) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    if ("*".equals(tag) || variant.etag.equals(tag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            String ifModifiedSince = headers.get(HttpHeaderNames.IF_MODIFIED_SINCE);
+            if (null != ifModifiedSince) {
+                Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+                //http的时间只精确到秒
+                return null != since && lastModified / 1000 <= since.getTime() / 1000;
+            }
+            return false;
+        }
+
+        static String contentType(String name) {
+            String lower = name.toLowerCase(Locale.ROOT);
+            if (lower.endsWith(".html") || lower.endsWith(".htm")) {
+                return "text/html; charset=utf-8";
+            } else if (lower.endsWith(".js")) {
+                return "application/javascript; charset=utf-8";
+            } else if (lower.endsWith(".css")) {
+                return "text/css; charset=utf-8";
+            } else if (lower.endsWith(".json")) {
+                return "application/json; charset=utf-8";
+            } else if (lower.endsWith(".png")) {
+                return "image/png";
+            } else if (lower.endsWith(".ico")) {
+                return "image/x-icon";
+            }
+            return "application/octet-stream";
+        }
+    }
+
+    /**
+     * 文件的一种编码版本
+     */
+    public static final class Variant {
+        //为null表示原始内容
+        private final String encoding;
+        //为null表示文件太大，没有缓存内容
+        private final ByteBuf content;
+        private final long length;
+        private final String etag;
+
+        private Variant(String encoding, ByteBuf content, long length, String etag) {
+            this.encoding = encoding;
+            this.content = content;
+            this.length = length;
+            this.etag = etag;
+        }
+
+        public String encoding() {
+            return encoding;
+        }
+
+        public boolean isCached() {
+            return null != content;
+        }
+
+        /**
+         * 缓存的内容，每次调用返回一个独立读写索引的duplicate，不需要release
+         *
+         * @return
+         */
+        public ByteBuf content() {
+            return content.duplicate();
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public String etag() {
+            return etag;
+        }
+
+        long cachedBytes() {
+            return null == content ? 0 : length;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.seancheer.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把请求体按照HttpContent到达的顺序直接写入磁盘上的临时文件，内存中最多只持有还没有写入的几个chunk，
+ * 不再像HttpObjectAggregator那样把整个请求体聚合成一个FullHttpRequest，内存占用和请求体的大小无关。
+ * 创建文件和写文件都是阻塞的，所以都交给单独的上传线程执行，同一个上传的所有操作在同一个线程中按顺序执行，
+ * 还没有写入的字节超过MAX_PENDING_BYTES的时候暂停channel的读取，写完之后再恢复，finish之后读取的恢复交给调用方。
+ * 除了I/O之外的方法只在channel所属的线程中调用。
+ * 上传完成的文件最多保留maxTotalBytes，超过之后删除最早完成的文件。
+ *
+ * @author: seancheer
+ * @date: 2020/4/1
+ **/
+public class UploadSpool {
+    public static final Path DEFAULT_DIR = Paths.get(System.getProperty("netty_test.chat.uploadDir",
+            System.getProperty("java.io.tmpdir")));
+    public static final long DEFAULT_MAX_BYTES = Long.getLong("netty_test.chat.maxUploadBytes", 64L * 1024 * 1024);
+    public static final long DEFAULT_MAX_TOTAL_BYTES = Long.getLong("netty_test.chat.maxUploadTotalBytes", 256L * 1024 * 1024);
+    private static final long MAX_PENDING_BYTES = 1024 * 1024;
+    //daemon线程，不会阻止jvm退出
+    private static final EventExecutorGroup IO_GROUP = new DefaultEventExecutorGroup(
+            Integer.getInteger("netty_test.chat.uploadThreads", 2), new DefaultThreadFactory("chat-upload", true));
+    private static final Retention RETENTION = new Retention(DEFAULT_MAX_TOTAL_BYTES);
+
+    private final Channel channel;
+    private final EventExecutor executor;
+    private final long maxBytes;
+    //已经提交写入的字节数，只在channel的线程中访问
+    private long accepted;
+    //finish之后读取由调用方控制，这里不再恢复读取，只在channel的线程中访问
+    private boolean finished;
+    //已经提交但是还没有写入磁盘的字节数
+    private final AtomicLong pending = new AtomicLong();
+    //以下字段只在executor中访问
+    private Path file;
+    private FileChannel fileChannel;
+    private long written;
+    private IOException failure;
+
+    private UploadSpool(Channel channel, long maxBytes) {
+        this.channel = channel;
+        this.executor = IO_GROUP.next();
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 在上传线程中创建临时文件，创建失败的话在finish的时候返回异常
+     *
+     * @param dir
+     * @param maxBytes
+     * @param channel 请求体所在的channel，写入太慢的时候暂停它的读取
+     * @return
+     */
+    public static UploadSpool create(final Path dir, long maxBytes, Channel channel) {
+        final UploadSpool spool = new UploadSpool(channel, maxBytes);
+        spool.executor.execute(() -> {
+            try {
+                Files.createDirectories(dir);
+                spool.file = Files.createTempFile(dir, "upload-", ".tmp");
+                spool.fileChannel = FileChannel.open(spool.file, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                spool.failure = e;
+            }
+        });
+        return spool;
+    }
+
+    /**
+     * 提交一个chunk，写入完成之后释放，调用方仍然需要释放自己持有的引用
+     *
+     * @param content
+     * @return 写入之后是否超过了maxBytes，超过的时候内容不会写入
+     */
+    public boolean write(final ByteBuf content) {
+        final int length = content.readableBytes();
+        if (accepted + length > maxBytes) {
+            return false;
+        }
+        accepted += length;
+        if (length == 0) {
+            return true;
+        }
+        if (pending.addAndGet(length) > MAX_PENDING_BYTES) {
+            channel.config().setAutoRead(false);
+        }
+        content.retain();
+        executor.execute(() -> {
+            try {
+                writeFully(content);
+            } finally {
+                content.release();
+                pending.addAndGet(-length);
+                //是否恢复读取也在channel的线程中判断，避免和上面暂停读取的判断交错
+                channel.eventLoop().execute(this::resumeIfDrained);
+            }
+        });
+        return true;
+    }
+
+    private void writeFully(ByteBuf content) {
+        if (null != failure || null == fileChannel) {
+            return;
+        }
+        //直接把ByteBuf对应的nio buffer写入FileChannel，FileChannel.write有可能只写入一部分，所以需要循环
+        int index = content.readerIndex();
+        int length = content.readableBytes();
+        try {
+            while (length > 0) {
+                int n = content.getBytes(index, fileChannel, written, length);
+                index += n;
+                written += n;
+                length -= n;
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void resumeIfDrained() {
+        if (!finished && !channel.config().isAutoRead() && pending.get() <= MAX_PENDING_BYTES / 2) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    public long accepted() {
+        return accepted;
+    }
+
+    /**
+     * 请求体接收完成，等待之前的chunk都写入之后关闭文件，文件保留在磁盘上，直到超过了保留的总大小
+     *
+     * @return 完成之后的文件名，写入失败的时候返回IOException，文件会被删除
+     */
+    public Future<String> finish() {
+        finished = true;
+        return executor.submit(() -> {
+            if (null != failure) {
+                closeAndDelete();
+                throw failure;
+            }
+            fileChannel.close();
+            RETENTION.add(file, written);
+            return file.getFileName().toString();
+        });
+    }
+
+    /**
+     * 请求没有完成(超过大小或者连接断开)，关闭并删除文件
+     */
+    public void abort() {
+        executor.execute(this::closeAndDelete);
+    }
+
+    private void closeAndDelete() {
+        try {
+            if (null != fileChannel) {
+                fileChannel.close();
+            }
+            if (null != file) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 上传完成的文件，按照完成的顺序保存，总大小超过maxTotalBytes的时候删除最早的文件，在上传线程中调用
+     */
+    private static final class Retention {
+        private final long maxTotalBytes;
+        private final ArrayDeque<Path> files = new ArrayDeque<>();
+        private final ArrayDeque<Long> sizes = new ArrayDeque<>();
+        private long totalBytes;
+
+        Retention(long maxTotalBytes) {
+            this.maxTotalBytes = maxTotalBytes;
+        }
+
+        synchronized void add(Path file, long size) {
+            files.addLast(file);
+            sizes.addLast(size);
+            totalBytes += size;
+            //刚完成的文件即使超过了maxTotalBytes也保留，至少能返回给客户端一个有效的文件名
+            while (totalBytes > maxTotalBytes && files.size() > 1) {
+                Path eldest = files.pollFirst();
+                totalBytes -= sizes.pollFirst();
+                try {
+                    Files.deleteIfExists(eldest);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
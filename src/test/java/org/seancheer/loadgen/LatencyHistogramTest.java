@@ -0,0 +1,162 @@
+package org.seancheer.loadgen;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LatencyHistogram的分桶、分位数计算，以及LoadHandler从预定发送时间开始计算延迟(coordinated omission修正)
+ *
+ * @author: seancheer
+ * @date: 2020/3/20
+ **/
+public class LatencyHistogramTest {
+
+    @Test
+    public void linearRangeIsExact() {
+        for (long v = 0; v < 128; v++) {
+            assertEquals(v, LatencyHistogram.indexOf(v));
+            assertEquals(v, LatencyHistogram.highestEquivalentValue((int) v));
+        }
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        //128~255每个桶宽度为2，256~511每个桶宽度为4
+        assertEquals(128, LatencyHistogram.indexOf(128));
+        assertEquals(128, LatencyHistogram.indexOf(129));
+        assertEquals(129, LatencyHistogram.indexOf(130));
+        assertEquals(129, LatencyHistogram.highestEquivalentValue(128));
+        assertEquals(191, LatencyHistogram.indexOf(255));
+        assertEquals(255, LatencyHistogram.highestEquivalentValue(191));
+        assertEquals(192, LatencyHistogram.indexOf(256));
+        assertEquals(192, LatencyHistogram.indexOf(259));
+        assertEquals(193, LatencyHistogram.indexOf(260));
+        assertEquals(259, LatencyHistogram.highestEquivalentValue(192));
+        //最大的值落在最后一个桶中
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestEquivalentValue(LatencyHistogram.indexOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void relativeErrorBelowOneIn64() {
+        int lastIndex = -1;
+        for (long v = 1; v > 0 && v < Long.MAX_VALUE / 3; v = v * 3 + 1) {
+            for (long x = v; x < v + 3; x++) {
+                int index = LatencyHistogram.indexOf(x);
+                long upper = LatencyHistogram.highestEquivalentValue(index);
+                assertTrue("index must not decrease at " + x, index >= lastIndex);
+                assertTrue("upper bound below value at " + x, upper >= x);
+                assertTrue("error too large at " + x, (upper - x) * 64 <= x);
+                lastIndex = index;
+            }
+        }
+    }
+
+    @Test
+    public void percentilesOfExactValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 100; v++) {
+            histogram.record(v);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(1, histogram.min());
+        assertEquals(100, histogram.max());
+        assertEquals(50.5, histogram.mean(), 1e-9);
+        assertEquals(1, histogram.percentile(0));
+        assertEquals(1, histogram.percentile(1));
+        assertEquals(50, histogram.percentile(50));
+        assertEquals(90, histogram.percentile(90));
+        assertEquals(99, histogram.percentile(99));
+        assertEquals(100, histogram.percentile(99.9));
+        assertEquals(100, histogram.percentile(100));
+    }
+
+    @Test
+    public void percentilesOfBucketedValuesNeverUnderestimate() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 10000; v++) {
+            histogram.record(v * 1000);
+        }
+        double[] percentiles = {50, 90, 99, 99.9};
+        long[] expected = {5000000, 9000000, 9900000, 9990000};
+        for (int i = 0; i < percentiles.length; i++) {
+            long p = histogram.percentile(percentiles[i]);
+            assertTrue("p" + percentiles[i] + "=" + p, p >= expected[i] && p <= expected[i] + expected[i] / 64);
+        }
+        assertEquals(10000000, histogram.percentile(100));
+    }
+
+    @Test
+    public void percentileCappedAtMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        //130所在桶的上界是131，但是不应该超过实际的最大值
+        histogram.record(130);
+        assertEquals(130, histogram.percentile(50));
+        assertEquals(130, histogram.percentile(100));
+    }
+
+    @Test
+    public void emptyAndNegative() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.min());
+        assertEquals(0, histogram.percentile(99));
+        assertEquals(0, histogram.mean(), 0);
+        histogram.record(-5);
+        assertEquals(1, histogram.count());
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.percentile(50));
+    }
+
+    @Test
+    public void mergeCombinesCounts() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (long v = 1; v <= 50; v++) {
+            a.record(v);
+            b.record(v + 50);
+        }
+        a.merge(b);
+        assertEquals(100, a.count());
+        assertEquals(1, a.min());
+        assertEquals(100, a.max());
+        assertEquals(50.5, a.mean(), 1e-9);
+        assertEquals(50, a.percentile(50));
+        assertEquals(99, a.percentile(99));
+    }
+
+    @Test
+    public void latencyMeasuredFromIntendedSendTime() {
+        int responseSize = 8;
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        long stallNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        ByteBuf payload = Unpooled.buffer(responseSize).writeZero(responseSize);
+        LoadGenerator.LoadHandler handler = new LoadGenerator.LoadHandler(
+                LoadGenerator.PayloadType.ECHO, payload, responseSize, intervalNanos);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        //模拟发送线程被推迟了10ms：第一个节拍执行的时候，前面11个请求的预定发送时间都已经过去了
+        handler.start(System.nanoTime() - stallNanos);
+        channel.runPendingTasks();
+        handler.stopSending();
+        long sent = handler.sent;
+        assertTrue("sent " + sent, sent >= 11);
+        channel.releaseOutbound();
+
+        //所有响应同时到达，如果从实际发送时间计算，延迟都接近0
+        channel.writeInbound(Unpooled.buffer().writeZero((int) sent * responseSize));
+        LatencyHistogram histogram = handler.histogram;
+        assertEquals(sent, histogram.count());
+        assertEquals(0, handler.outstanding());
+        //第i个请求至少等待了stall - i * interval
+        assertTrue("max " + histogram.max(), histogram.max() >= stallNanos);
+        assertTrue("p50 " + histogram.percentile(50), histogram.percentile(50) >= stallNanos / 2 - intervalNanos);
+        channel.finishAndReleaseAll();
+        payload.release();
+    }
+}
@@ -0,0 +1,186 @@
+package org.seancheer.rawnio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * FrameDecoder的拆包和粘包：长度字段和报文体跨多次read、一次read包含多个报文、超过最大长度的报文
+ *
+ * @author: seancheer
+ * @date: 2020/4/8
+ **/
+public class FrameDecoderTest {
+    private final BufferPool pool = new BufferPool();
+    private final List<byte[]> frames = new ArrayList<>();
+    private final FrameDecoder.FrameHandler collector = frame -> {
+        //frame只在回调期间有效，这里拷贝出来
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        frames.add(bytes);
+    };
+    private FrameDecoder decoder;
+
+    @After
+    public void tearDown() {
+        if (null != decoder) {
+            decoder.release();
+        }
+    }
+
+    @Test
+    public void multipleFramesInOneRead() throws IOException {
+        decoder = new FrameDecoder(LengthPrefix.VARINT32, 1024, pool);
+        byte[] a = payload(1, 'a');
+        byte[] b = payload(0, 'b');
+        byte[] c = payload(200, 'c');
+        decoder.decode(ByteBuffer.wrap(encode(LengthPrefix.VARINT32, a, b, c)), collector);
+
+        assertEquals(3, frames.size());
+        assertArrayEquals(a, frames.get(0));
+        assertArrayEquals(b, frames.get(1));
+        assertArrayEquals(c, frames.get(2));
+        assertEquals(0, decoder.pendingBytes());
+    }
+
+    @Test
+    public void partialHeaderAcrossReads() throws IOException {
+        decoder = new FrameDecoder(LengthPrefix.VARINT32, 1 << 20, pool);
+        //16384的长度字段是3个字节，分3次到达
+        byte[] body = payload(16384, 'x');
+        byte[] stream = encode(LengthPrefix.VARINT32, body);
+        decoder.decode(ByteBuffer.wrap(stream, 0, 1), collector);
+        assertEquals(1, decoder.pendingBytes());
+        decoder.decode(ByteBuffer.wrap(stream, 1, 1), collector);
+        assertEquals(2, decoder.pendingBytes());
+        decoder.decode(ByteBuffer.wrap(stream, 2, stream.length - 2), collector);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(body, frames.get(0));
+        assertEquals(0, decoder.pendingBytes());
+    }
+
+    @Test
+    public void partialBodyAcrossReads() throws IOException {
+        decoder = new FrameDecoder(LengthPrefix.FIXED32, 1024, pool);
+        byte[] body = payload(100, 'y');
+        byte[] stream = encode(LengthPrefix.FIXED32, body);
+        decoder.decode(ByteBuffer.wrap(stream, 0, 50), collector);
+        assertEquals(0, frames.size());
+        assertEquals(50, decoder.pendingBytes());
+        decoder.decode(ByteBuffer.wrap(stream, 50, 30), collector);
+        assertEquals(0, frames.size());
+        assertEquals(80, decoder.pendingBytes());
+        decoder.decode(ByteBuffer.wrap(stream, 80, stream.length - 80), collector);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(body, frames.get(0));
+        assertEquals(0, decoder.pendingBytes());
+    }
+
+    @Test
+    public void everySplitPointReassembles() throws IOException {
+        byte[][] bodies = {payload(127, 'a'), payload(128, 'b'), payload(3, 'c'), payload(300, 'd')};
+        for (LengthPrefix prefix : LengthPrefix.values()) {
+            byte[] stream = encode(prefix, bodies);
+            for (int split = 0; split <= stream.length; split++) {
+                frames.clear();
+                decoder = new FrameDecoder(prefix, 1024, pool);
+                decoder.decode(ByteBuffer.wrap(stream, 0, split), collector);
+                decoder.decode(ByteBuffer.wrap(stream, split, stream.length - split), collector);
+
+                assertEquals(prefix + " split at " + split, bodies.length, frames.size());
+                for (int i = 0; i < bodies.length; i++) {
+                    assertArrayEquals(prefix + " split at " + split, bodies[i], frames.get(i));
+                }
+                assertEquals(0, decoder.pendingBytes());
+                decoder.release();
+            }
+        }
+    }
+
+    @Test
+    public void byteByByteReassembles() throws IOException {
+        decoder = new FrameDecoder(LengthPrefix.VARINT32, 1 << 20, pool);
+        byte[][] bodies = {payload(16383, 'a'), payload(16384, 'b'), payload(1, 'c')};
+        byte[] stream = encode(LengthPrefix.VARINT32, bodies);
+        for (int i = 0; i < stream.length; i++) {
+            decoder.decode(ByteBuffer.wrap(stream, i, 1), collector);
+        }
+
+        assertEquals(bodies.length, frames.size());
+        for (int i = 0; i < bodies.length; i++) {
+            assertArrayEquals(bodies[i], frames.get(i));
+        }
+        assertEquals(0, decoder.pendingBytes());
+    }
+
+    @Test
+    public void oversizedFrameRejectedBeforeBodyArrives() {
+        decoder = new FrameDecoder(LengthPrefix.VARINT32, 100, pool);
+        //只有长度字段，报文体还没有到达就应该拒绝
+        ByteBuffer header = ByteBuffer.allocate(5);
+        LengthPrefix.VARINT32.writeHeader(header, 101);
+        header.flip();
+        try {
+            decoder.decode(header, collector);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            //ok
+        }
+        assertEquals(0, frames.size());
+    }
+
+    @Test
+    public void maxFrameLengthAccepted() throws IOException {
+        decoder = new FrameDecoder(LengthPrefix.VARINT32, 100, pool);
+        byte[] body = payload(100, 'z');
+        decoder.decode(ByteBuffer.wrap(encode(LengthPrefix.VARINT32, body)), collector);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(body, frames.get(0));
+    }
+
+    @Test
+    public void claimedLengthDoesNotPresizeBeyondPool() throws IOException {
+        decoder = new FrameDecoder(LengthPrefix.VARINT32, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH, pool);
+        //对端只声明了1MB的长度，实际只发送了几个字节，不应该申请池外的大buffer
+        ByteBuffer partial = ByteBuffer.allocate(16);
+        LengthPrefix.VARINT32.writeHeader(partial, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+        partial.put((byte) 1).flip();
+        decoder.decode(partial, collector);
+        decoder.decode(ByteBuffer.wrap(new byte[]{2, 3}), collector);
+
+        assertEquals(0, pool.unpooledAllocations());
+        assertEquals(0, frames.size());
+    }
+
+    private static byte[] payload(int length, char fill) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (fill + i % 7);
+        }
+        return bytes;
+    }
+
+    private static byte[] encode(LengthPrefix prefix, byte[]... bodies) {
+        int total = 0;
+        for (byte[] body : bodies) {
+            total += prefix.headerLength(body.length) + body.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(total);
+        for (byte[] body : bodies) {
+            prefix.writeHeader(buf, body.length);
+            buf.put(body);
+        }
+        return buf.array();
+    }
+}
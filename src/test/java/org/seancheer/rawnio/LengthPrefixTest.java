@@ -0,0 +1,93 @@
+package org.seancheer.rawnio;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * LengthPrefix的编解码，重点是varint32每个字节数的边界值
+ *
+ * @author: seancheer
+ * @date: 2020/4/8
+ **/
+public class LengthPrefixTest {
+    private static final int[] VARINT_BOUNDARIES = {
+            0, 1, 127, 128, 16383, 16384, 2097151, 2097152, 268435455, 268435456, Integer.MAX_VALUE
+    };
+    private static final int[] VARINT_HEADER_LENGTHS = {1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5};
+
+    @Test
+    public void varint32BoundaryRoundTrip() throws IOException {
+        for (int i = 0; i < VARINT_BOUNDARIES.length; i++) {
+            int length = VARINT_BOUNDARIES[i];
+            ByteBuffer buf = ByteBuffer.allocate(8);
+            LengthPrefix.VARINT32.writeHeader(buf, length);
+            buf.flip();
+            assertEquals("header bytes of " + length, VARINT_HEADER_LENGTHS[i], buf.remaining());
+            assertEquals("headerLength of " + length, VARINT_HEADER_LENGTHS[i], LengthPrefix.VARINT32.headerLength(length));
+            assertEquals(length, LengthPrefix.VARINT32.readLength(buf));
+            assertEquals(0, buf.remaining());
+        }
+    }
+
+    @Test
+    public void varint32IncompleteHeaderDoesNotMovePosition() throws IOException {
+        for (int length : VARINT_BOUNDARIES) {
+            ByteBuffer full = ByteBuffer.allocate(8);
+            LengthPrefix.VARINT32.writeHeader(full, length);
+            full.flip();
+            //去掉最后一个字节之后长度字段都不完整
+            for (int n = 0; n < full.remaining(); n++) {
+                ByteBuffer partial = full.duplicate();
+                partial.limit(n);
+                assertEquals(-1, LengthPrefix.VARINT32.readLength(partial));
+                assertEquals(0, partial.position());
+            }
+        }
+    }
+
+    @Test
+    public void varint32RejectsNegativeLength() {
+        //-1的varint32编码
+        ByteBuffer buf = ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F});
+        expectIOException(LengthPrefix.VARINT32, buf);
+    }
+
+    @Test
+    public void varint32RejectsMoreThanFiveBytes() {
+        ByteBuffer buf = ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01});
+        expectIOException(LengthPrefix.VARINT32, buf);
+    }
+
+    @Test
+    public void fixed32RoundTripAndIncomplete() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        LengthPrefix.FIXED32.writeHeader(buf, 16384);
+        buf.flip();
+        ByteBuffer partial = buf.duplicate();
+        partial.limit(3);
+        assertEquals(-1, LengthPrefix.FIXED32.readLength(partial));
+        assertEquals(0, partial.position());
+        assertEquals(16384, LengthPrefix.FIXED32.readLength(buf));
+    }
+
+    @Test
+    public void fixed32RejectsNegativeLength() {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        buf.putInt(-1).flip();
+        expectIOException(LengthPrefix.FIXED32, buf);
+    }
+
+    private static void expectIOException(LengthPrefix prefix, ByteBuffer buf) {
+        try {
+            prefix.readLength(buf);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            //ok
+        }
+    }
+}